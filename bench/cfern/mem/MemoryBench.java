@@ -0,0 +1,193 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+import java.io.IOException;
+import java.util.*;
+import cfern.Driver;
+import cfern.fs.*;
+import cfern.io.*;
+import cfern.sys.str.*;
+
+/**
+ * Microbenchmarks for the memory implementation. Not part of the program,
+ * compile against it and run, e.g.
+ * javac -cp bin -d benchbin bench/cfern/mem/MemoryBench.java
+ * java -cp bin:benchbin cfern.mem.MemoryBench [mem=int|mem=shift|mem=direct]
+ * Prints nanoseconds per access for each case. Addresses come from a
+ * precomputed table so each case does the same work apart from the access.
+ * Also prints throughput of the bulk methods used by read and write.
+ */
+public final class MemoryBench {
+
+  /**
+   * Data region, and number of pages mapped
+   */
+  private static final int base = 0x10000000, nump = 64;
+
+  /**
+   * Accesses per run, and size of address tables
+   */
+  private static final int count = 1 << 24, tablesize = 4096;
+
+  /**
+   * Bytes per bulk operation (a page plus a bit, so it crosses a page
+   * boundary), and bulk operations per run
+   */
+  private static final int bulklen = Pages.size + 100, bulkcount = 1 << 13;
+
+  /**
+   * Stops the jit discarding results
+   */
+  private static int sink;
+
+  private MemoryBench() {
+    // private to prevent javadoc
+  }
+
+  public static void main(String[] args) throws IOException {
+    Driver.opt.init(Arrays.asList(args));
+    Memory mem = Memory.make();
+    mem.alloc(base, nump * Pages.size);
+    System.out.println("memory: " + mem.getClass().getSimpleName() + " " + Arrays.toString(args));
+
+    // one page, a typical working set (e.g. stack, data, heap, text), and
+    // more pages than any page cache holds
+    int[] one = addresses(1, 4), four = addresses(4, 4), all = addresses(nump, 4);
+    int[] onebytes = addresses(1, 1), onehalves = addresses(1, 2), onedwords = addresses(1, 8);
+
+    for (int run = 0; run < 3; run++) {
+      System.out.println("run " + run);
+      time("load_word 1 page", mem, 0, one);
+      time("load_word 4 pages", mem, 0, four);
+      time("load_word 64 pages", mem, 0, all);
+      time("store_word 1 page", mem, 1, one);
+      time("store_word 4 pages", mem, 1, four);
+      time("store_word 64 pages", mem, 1, all);
+      time("load_byte 1 page", mem, 2, onebytes);
+      time("store_byte 1 page", mem, 3, onebytes);
+      time("load_half 1 page", mem, 4, onehalves);
+      time("load_dword 1 page", mem, 5, onedwords);
+      // unaligned word loads, from Java and as lwl/lwr pairs
+      time("load_word unaligned", mem, 0, onebytes);
+      time("lwl/lwr 1 page", mem, 6, onebytes);
+    }
+
+    // like /dev/null
+    FileDesc sink = new StreamFileDesc(InputStreamUtil.eof, OutputStreamUtil.sink) {
+      public Stat fstat() {
+        return null;
+      }
+      public StatFS fstatfs() {
+        return null;
+      }
+    };
+
+    for (int run = 0; run < 3; run++) {
+      System.out.println("bulk run " + run);
+      bulk("store_bytes", mem, 0, sink);
+      bulk("load_bytes", mem, 1, sink);
+      bulk("memset", mem, 2, sink);
+      bulk("write_to /dev/null", mem, 3, sink);
+    }
+  }
+
+  /**
+   * Make a table of random addresses over the given number of pages, with
+   * the given alignment
+   */
+  private static int[] addresses(int pages, int align) {
+    Random r = new Random(pages);
+    int[] a = new int[tablesize];
+    for (int n = 0; n < a.length; n++)
+      // doesn't cross the end of the page
+      a[n] = base + (r.nextInt(pages) * (nump / pages) * Pages.size) + (r.nextInt((Pages.size - 8) / align) * align);
+    return a;
+  }
+
+  /**
+   * Time a case and print ns per access
+   */
+  private static void time(String name, Memory mem, int c, int[] addrs) {
+    long t = System.nanoTime();
+    sink += run(mem, c, addrs);
+    t = System.nanoTime() - t;
+    System.out.printf("  %-24s %6.2f ns\n", name, (double) t / count);
+  }
+
+  /**
+   * Time a bulk case and print mb per second
+   */
+  private static void bulk(String name, Memory mem, int c, FileDesc sink) {
+    byte[] buf = new byte[bulklen];
+    long t = System.nanoTime();
+    for (int n = 0; n < bulkcount; n++) {
+      // unaligned, on all but the last 2 pages
+      int a = base + ((n % (nump - 2)) * Pages.size) + 0x1235;
+      switch (c) {
+        case 0:
+          mem.store_bytes(a, buf, 0, bulklen);
+          break;
+        case 1:
+          mem.load_bytes(a, buf, 0, bulklen);
+          break;
+        case 2:
+          mem.memset(a, (byte) n, bulklen);
+          break;
+        case 3:
+          mem.write_to(sink, a, bulklen);
+          break;
+      }
+    }
+    t = System.nanoTime() - t;
+    System.out.printf("  %-24s %6.0f mb/s\n", name, ((double) bulklen * bulkcount * 1000) / t);
+  }
+
+  /**
+   * Run a case
+   */
+  private static int run(Memory mem, int c, int[] addrs) {
+    int x = 0;
+    int mask = addrs.length - 1;
+    switch (c) {
+      case 0:
+        for (int n = 0; n < count; n++)
+          x += mem.load_word(addrs[n & mask]);
+        break;
+      case 1:
+        for (int n = 0; n < count; n++)
+          mem.store_word(addrs[n & mask], n);
+        break;
+      case 2:
+        for (int n = 0; n < count; n++)
+          x += mem.load_byte(addrs[n & mask]);
+        break;
+      case 3:
+        for (int n = 0; n < count; n++)
+          mem.store_byte(addrs[n & mask], (byte) n);
+        break;
+      case 4:
+        for (int n = 0; n < count; n++)
+          x += mem.load_half(addrs[n & mask]);
+        break;
+      case 5:
+        for (int n = 0; n < count; n++)
+          x += (int) mem.load_dword(addrs[n & mask]);
+        break;
+      case 6:
+        // as the interpreter does lwl then lwr
+        for (int n = 0; n < count; n++) {
+          int a = addrs[n & mask];
+          int s = (a & 3) << 3;
+          int l = (mem.load_word(a & ~3) << s) | (x & ((int) (0xffffffffL >>> (32 - s))));
+          int e = a + 3, t = ((e & 3) + 1) << 3;
+          x = (mem.load_word(e & ~3) >>> (32 - t)) | (l & ((int) (0xffffffffL << t)));
+        }
+        break;
+    }
+    return x;
+  }
+
+}
@@ -208,7 +208,7 @@ public class Driver {
     try {
       String aprog = prog.startsWith("/") ? prog : "/".concat(prog);
       FileDesc uf = FileSystem.get().openex(aprog);
-      elf = ElfLoader.loadelf(uf);
+      elf = ElfLoader.loadelf(uf, aprog);
     } catch (IOException e) {
     	e.printStackTrace();
     	throw new Exception("Driver: Could not load " + prog);
@@ -260,7 +260,12 @@ public class Driver {
         "  -!  ignore undefined constants\n" +
         "Env:\n" +
         "  bp=function,...     do a disasm breakpoint in f and ...\n" +
-        "  log=fs,sig,fun,elf  enable info logging of subsystem\n";
+        "  log=fs,sig,fun,elf  enable info logging of subsystem\n" +
+        "  mem=int             use int pages for memory\n" +
+        "  mem=shift           use byte shifts for words in byte pages\n" +
+        "  mem=direct          use off heap pages for memory\n" +
+        "  elf=lazy            load program pages when first touched\n" +
+        "  tmp=64m             memory for each tmp file system, more is spilled to disk\n";
     
     System.err.print(usage);
   }
@@ -34,6 +34,23 @@ public class Options {
    */
   public boolean keepcr, undef;
   
+  /**
+   * Use int pages for memory (mem=int), byte pages with shifts instead of
+   * buffer views for words (mem=shift), or off heap pages (mem=direct)
+   */
+  public boolean intmem, shiftmem, directmem;
+  
+  /**
+   * Load elf segments when their pages are first touched (elf=lazy)
+   */
+  public boolean lazyelf;
+  
+  /**
+   * Memory budget in bytes shared by the tmp file systems not given a size
+   * (tmp=64m), 0 for default
+   */
+  public long tmpsize;
+  
   public Options() {
     // yawn
   }
@@ -49,6 +66,14 @@ public class Options {
         fslog = s.indexOf("fs") > 0;
         siglog = s.indexOf("sig") > 0;
         funlog = s.indexOf("fun") > 0;
+      } else if (s.startsWith("mem=")) {
+        intmem = s.equals("mem=int");
+        shiftmem = s.equals("mem=shift");
+        directmem = s.equals("mem=direct");
+      } else if (s.startsWith("elf=")) {
+        lazyelf = s.equals("elf=lazy");
+      } else if (s.startsWith("tmp=")) {
+        tmpsize = parsesize(s.substring(4));
       }
     }
     if (trace) {
@@ -77,6 +102,11 @@ public class Options {
     fslog = other.fslog;
     funlog = other.funlog;
     info = other.info;
+    intmem = other.intmem;
+    shiftmem = other.shiftmem;
+    directmem = other.directmem;
+    lazyelf = other.lazyelf;
+    tmpsize = other.tmpsize;
     interactive = other.interactive;
     regprint = other.regprint;
     slow = other.slow;
@@ -164,6 +194,24 @@ public class Options {
     }
   }
   
+  /**
+   * Parse a size in bytes with an optional k, m or g suffix, returns 0 if
+   * invalid
+   */
+  public static long parsesize(String s) {
+    long mul = 1;
+    char c = s.length() > 0 ? Character.toLowerCase(s.charAt(s.length() - 1)) : 0;
+    if (c == 'k' || c == 'm' || c == 'g') {
+      mul = c == 'k' ? 1L << 10 : c == 'm' ? 1L << 20 : 1L << 30;
+      s = s.substring(0, s.length() - 1);
+    }
+    try {
+      return Long.parseLong(s) * mul;
+    } catch (NumberFormatException e) {
+      return 0;
+    }
+  }
+  
   /**
    * Copy an Options object so that it can be changed by another thread
    */
@@ -9,7 +9,8 @@ import java.util.*;
 
 /**
  * Keeps track of running machines, also notifies terminal of changes in machine
- * state. All methods are synchronized to avoid concurrent modification.
+ * state. The machines are only touched with the class locked, to avoid
+ * concurrent modification.
  */
 public final class Machines {
   
@@ -59,11 +60,15 @@ public final class Machines {
    * Keep a reference to this machine so we an send signals to it.
    * Also update user interface.
    */
-  public static synchronized void started(Machine machine) {
+  public static void started(Machine machine) {
     int pid = machine.getpid();
-    machines.put(Integer.valueOf(pid), machine);
-    for (MachineListener l : listeners)
-      l.machineStarted(pid, machine.getName());
+    synchronized (Machines.class) {
+      machines.put(Integer.valueOf(pid), machine);
+      for (MachineListener l : listeners)
+        l.machineStarted(pid, machine.getName());
+    }
+    // JMX registration is slow, don't hold up other processes
+    SyscallStats.started(pid, machine.stats());
   }
   
   /**
@@ -81,10 +86,21 @@ public final class Machines {
   /**
    * Indicate this machine is no longer running
    */
-  public static synchronized void exited(int pid, int exit) {
-    Machine m = machines.remove(Integer.valueOf(pid));
-    if (m == null)
-      throw new RuntimeException("pid " + pid + " wasn't running");
+  public static void exited(int pid, int exit) {
+    synchronized (Machines.class) {
+      Machine m = machines.remove(Integer.valueOf(pid));
+      if (m == null)
+        throw new RuntimeException("pid " + pid + " wasn't running");
+      SyscallStats.exited(m.stats());
+    }
+    SyscallStats.unregister(pid);
+  }
+  
+  /**
+   * Get the running machines
+   */
+  public static synchronized List<Machine> list() {
+    return new ArrayList<Machine>(machines.values());
   }
   
   /**
@@ -0,0 +1,62 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu;
+
+/**
+ * A system call implementation, with the number of arguments it takes, which
+ * of them are pointers and whether it can block. Handlers are registered in
+ * SyscallTable.
+ */
+public abstract class SyscallHandler {
+  
+  /**
+   * Number of arguments, 0 to 6
+   */
+  public final int args;
+  
+  /**
+   * Bit n is set if argument n is a pointer
+   */
+  public final int pointers;
+  
+  /**
+   * True if the call can wait on another process or the outside world
+   */
+  public final boolean blocks;
+  
+  /**
+   * Create a handler with the given argument types, one character per
+   * argument, 'i' for an integer and 'p' for a pointer.
+   */
+  protected SyscallHandler(String spec, boolean blocks) {
+    if (spec.length() > 6)
+      throw new IllegalArgumentException("too many args: " + spec);
+    int p = 0;
+    for (int n = 0; n < spec.length(); n++) {
+      char ch = spec.charAt(n);
+      if (ch == 'p')
+        p |= 1 << n;
+      else if (ch != 'i')
+        throw new IllegalArgumentException("bad arg type: " + spec);
+    }
+    this.args = spec.length();
+    this.pointers = p;
+    this.blocks = blocks;
+  }
+  
+  /**
+   * Return true if argument n is a pointer
+   */
+  public final boolean pointer(int n) {
+    return (pointers & (1 << n)) != 0;
+  }
+  
+  /**
+   * Do the system call for the given machine. Arguments past args are 0.
+   */
+  public abstract int call(Machine m, int a, int b, int c, int d, int e, int f);
+  
+} // end of class SyscallHandler
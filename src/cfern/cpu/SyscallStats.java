@@ -0,0 +1,301 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import javax.management.*;
+import cfern.Driver;
+import static cfern.cpu.Syscalls.*;
+
+/**
+ * Syscall counts, time and latency histograms, instructions retired and wall
+ * time of a process. Each Machine has one, which only its thread writes to, so
+ * counting takes no locks. Other threads (JMX and /proc/cfern/stats) may see
+ * slightly stale values. Stats of exited processes are added to a static
+ * total.
+ *
+ * Latencies are kept in log linear buckets, four per power of two, so
+ * percentiles are accurate to within 25%.
+ */
+public final class SyscallStats implements SyscallStatsMBean {
+  
+  /**
+   * Number of latency buckets, the last one is for anything over 2^40 ns
+   */
+  private static final int buckets = 160;
+  
+  /**
+   * Stats of all exited processes. Guarded by the Machines lock so a process
+   * is counted either here or as running, never both.
+   */
+  private static final SyscallStats exited = new SyscallStats();
+  
+  /**
+   * Register the total stats with JMX
+   */
+  static {
+    register("cfern:type=Syscalls", new StandardMBean(new SyscallStatsMBean() {
+      public int getProcesses() {
+        return total().getProcesses();
+      }
+      public long getCalls() {
+        return total().getCalls();
+      }
+      public long getCallNanos() {
+        return total().getCallNanos();
+      }
+      public long getInstructions() {
+        return total().getInstructions();
+      }
+      public long getWallNanos() {
+        return total().getWallNanos();
+      }
+      public String[] getSyscalls() {
+        return total().getSyscalls();
+      }
+    }, SyscallStatsMBean.class, false));
+  }
+  
+  /**
+   * Calls, nanoseconds and maximum nanoseconds per syscall number
+   */
+  private final long[] calls = new long[sys_names.length], nanos = new long[sys_names.length], max = new long[sys_names.length];
+  
+  /**
+   * Latency histogram per syscall number, null until first called
+   */
+  private final long[][] hist = new long[sys_names.length][];
+  
+  /**
+   * Processes counted, instructions retired, start of the current run (0 if
+   * not running), and wall time of finished runs
+   */
+  private int processes;
+  private long instructions, started, wall;
+  
+  /**
+   * Create empty stats
+   */
+  SyscallStats() {
+    // nothing counted yet
+  }
+  
+  /**
+   * Bucket for a latency
+   */
+  private static int bucket(long ns) {
+    if (ns < 4)
+      return ns < 0 ? 0 : (int) ns;
+    int e = 63 - Long.numberOfLeadingZeros(ns);
+    int i = ((e - 1) << 2) | (int) ((ns >>> (e - 2)) & 3);
+    return i < buckets ? i : buckets - 1;
+  }
+  
+  /**
+   * Highest latency in a bucket
+   */
+  private static long value(int i) {
+    if (i < 4)
+      return i;
+    int s = (i >> 2) - 1;
+    return ((long) ((i & 3) + 5) << s) - 1;
+  }
+  
+  /**
+   * Count a syscall and the instructions retired so far.
+   * Only call from the owning machine.
+   */
+  void syscall(int call, long ns, long isns) {
+    calls[call]++;
+    nanos[call] += ns;
+    if (ns > max[call])
+      max[call] = ns;
+    long[] h = hist[call];
+    if (h == null)
+      hist[call] = h = new long[buckets];
+    h[bucket(ns)]++;
+    instructions = isns;
+  }
+  
+  /**
+   * Start timing a run of the machine
+   */
+  void start() {
+    processes = 1;
+    started = System.nanoTime();
+  }
+  
+  /**
+   * Finish timing a run of the machine
+   */
+  void stop(long isns) {
+    wall += System.nanoTime() - started;
+    started = 0;
+    instructions = isns;
+  }
+  
+  /**
+   * Add other stats to these
+   */
+  private void add(SyscallStats other) {
+    for (int n = 0; n < calls.length; n++) {
+      if (other.calls[n] == 0)
+        continue;
+      calls[n] += other.calls[n];
+      nanos[n] += other.nanos[n];
+      max[n] = Math.max(max[n], other.max[n]);
+      long[] oh = other.hist[n];
+      if (oh == null)
+        continue;
+      long[] h = hist[n];
+      if (h == null)
+        hist[n] = h = new long[buckets];
+      for (int i = 0; i < buckets; i++)
+        h[i] += oh[i];
+    }
+    processes += other.processes;
+    instructions += other.instructions;
+    wall += other.getWallNanos();
+  }
+  
+  /**
+   * Latency at the given fraction (0 to 1) of calls of a syscall
+   */
+  private long percentile(int call, double frac) {
+    long[] h = hist[call];
+    if (h == null)
+      return 0;
+    long count = 0, want = (long) Math.ceil(calls[call] * frac);
+    for (int i = 0; i < buckets; i++) {
+      count += h[i];
+      if (count >= want && count > 0)
+        return Math.min(value(i), max[call]);
+    }
+    return max[call];
+  }
+  
+  public int getProcesses() {
+    return processes;
+  }
+  
+  public long getCalls() {
+    long ret = 0;
+    for (int n = 0; n < calls.length; n++)
+      ret += calls[n];
+    return ret;
+  }
+  
+  public long getCallNanos() {
+    long ret = 0;
+    for (int n = 0; n < nanos.length; n++)
+      ret += nanos[n];
+    return ret;
+  }
+  
+  public long getInstructions() {
+    return instructions;
+  }
+  
+  public long getWallNanos() {
+    long s = started;
+    return s != 0 ? wall + (System.nanoTime() - s) : wall;
+  }
+  
+  public String[] getSyscalls() {
+    List<Integer> used = new ArrayList<Integer>();
+    for (int n = 0; n < calls.length; n++)
+      if (calls[n] > 0)
+        used.add(Integer.valueOf(n));
+    Collections.sort(used, new Comparator<Integer>() {
+      public int compare(Integer a, Integer b) {
+        long x = nanos[a.intValue()], y = nanos[b.intValue()];
+        return x > y ? -1 : x < y ? 1 : 0;
+      }
+    });
+    String[] ret = new String[used.size()];
+    for (int i = 0; i < ret.length; i++) {
+      int n = used.get(i).intValue();
+      ret[i] = String.format("%-16s %10d %12.3f %10.3f %10.3f %10.3f %10.3f", sys_name(n).name, calls[n], nanos[n] / 1e6, 
+          nanos[n] / 1e3 / calls[n], percentile(n, 0.5) / 1e3, percentile(n, 0.99) / 1e3, max[n] / 1e3);
+    }
+    return ret;
+  }
+  
+  /**
+   * Describe the stats as a table of syscalls
+   */
+  public String string() {
+    StringBuilder sb = new StringBuilder();
+    sb.append(String.format("processes %d instructions %d wall %.3f ms syscalls %d syscall time %.3f ms\n", 
+        processes, instructions, getWallNanos() / 1e6, getCalls(), getCallNanos() / 1e6));
+    sb.append(String.format("%-16s %10s %12s %10s %10s %10s %10s\n", "syscall", "calls", "total ms", "mean us", "p50 us", "p99 us", "max us"));
+    String[] lines = getSyscalls();
+    for (int n = 0; n < lines.length; n++)
+      sb.append(lines[n]).append("\n");
+    return sb.toString();
+  }
+  
+  /**
+   * Get the stats of all processes, running and exited
+   */
+  public static SyscallStats total() {
+    SyscallStats ret = new SyscallStats();
+    synchronized (Machines.class) {
+      ret.add(exited);
+      for (Machine m : Machines.list())
+        ret.add(m.stats());
+    }
+    return ret;
+  }
+  
+  /**
+   * Register the stats of a started process with JMX
+   */
+  static void started(int pid, SyscallStats stats) {
+    register("cfern:type=Process,pid=" + pid, stats);
+  }
+  
+  /**
+   * Add the stats of an exited process to the total. Called from Machines
+   * with its lock held, so total() counts it once.
+   */
+  static void exited(SyscallStats stats) {
+    exited.add(stats);
+  }
+  
+  /**
+   * Unregister the stats of an exited process from JMX
+   */
+  static void unregister(int pid) {
+    try {
+      ObjectName name = new ObjectName("cfern:type=Process,pid=" + pid);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(name))
+        server.unregisterMBean(name);
+    } catch (JMException e) {
+      Driver.opt().warn("could not unregister stats of %d: %s", pid, e);
+    }
+  }
+  
+  /**
+   * Register an MBean, replacing any existing one with the same name
+   */
+  private static void register(String name, Object mbean) {
+    try {
+      ObjectName on = new ObjectName(name);
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      if (server.isRegistered(on))
+        server.unregisterMBean(on);
+      server.registerMBean(mbean, on);
+    } catch (JMException e) {
+      Driver.opt().warn("could not register %s: %s", name, e);
+    } catch (SecurityException e) {
+      Driver.opt().warn("could not register %s: %s", name, e);
+    }
+  }
+  
+} // end of class SyscallStats
@@ -0,0 +1,44 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu;
+
+/**
+ * JMX view of the syscall statistics of a process or of all processes (see
+ * SyscallStats).
+ */
+public interface SyscallStatsMBean {
+  
+  /**
+   * Number of processes counted (1 for a single process)
+   */
+  int getProcesses();
+  
+  /**
+   * Total number of syscalls
+   */
+  long getCalls();
+  
+  /**
+   * Total nanoseconds spent in syscalls
+   */
+  long getCallNanos();
+  
+  /**
+   * Instructions retired (as of the last syscall for running processes)
+   */
+  long getInstructions();
+  
+  /**
+   * Nanoseconds spent running
+   */
+  long getWallNanos();
+  
+  /**
+   * One line per syscall used, most total time first
+   */
+  String[] getSyscalls();
+  
+}
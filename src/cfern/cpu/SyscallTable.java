@@ -0,0 +1,471 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu;
+
+import cfern.mem.Memory;
+import cfern.sys.*;
+import static cfern.cpu.Syscalls.*;
+
+/**
+ * The system call handlers, indexed by syscall number. Each handler knows how
+ * many arguments it takes, so the processor can load the ones passed on the
+ * stack and trace the call without special cases.
+ * Note: other architechtures may have different syscall numbers.
+ */
+public final class SyscallTable {
+  
+  /**
+   * Handlers indexed by syscall number, null if unimplemented
+   */
+  private static final SyscallHandler[] handlers = new SyscallHandler[sys_names.length];
+  
+  static {
+    init();
+  }
+  
+  private SyscallTable() {
+    // private to prevent javadoc
+  }
+  
+  /**
+   * Get the handler for a syscall, or null if there isnt one
+   */
+  public static SyscallHandler get(int call) {
+    return call >= 0 && call < handlers.length ? handlers[call] : null;
+  }
+  
+  /**
+   * Describe a call and its arguments, e.g. for tracing. Pointers are given as
+   * symbol names where possible.
+   */
+  public static String string(int call, Memory mem, int a, int b, int c, int d, int e, int f) {
+    SyscallHandler h = get(call);
+    StringBuilder sb = new StringBuilder("syscall ").append(call).append(' ').append(sys_name(call).name).append('(');
+    if (h == null)
+      return sb.append("?)").toString();
+    int[] args = { a, b, c, d, e, f };
+    for (int n = 0; n < h.args; n++) {
+      if (n > 0)
+        sb.append(", ");
+      if (h.pointer(n))
+        mem.appendname(sb, args[n]);
+      else
+        sb.append(args[n]);
+    }
+    sb.append(')');
+    if (h.blocks)
+      sb.append(" [blocks]");
+    return sb.toString();
+  }
+  
+  /**
+   * Register a handler
+   */
+  private static void add(int call, SyscallHandler h) {
+    if (handlers[call] != null)
+      throw new RuntimeException("syscall " + call + " registered twice");
+    handlers[call] = h;
+  }
+  
+  /**
+   * Register all the implemented syscalls. The arguments on the stack (the
+   * 5th and 6th) are only loaded for handlers that say they take them.
+   */
+  private static void init() {
+    add(SYS_SYSCALL, new SyscallHandler("iiiiii", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.syscall(a, b, c, d, e, f, 0);
+      }
+    });
+    add(SYS_EXIT, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        throw new EndOfProgramException();
+      }
+    });
+    add(SYS_FORK, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        // doesnt return from here in the forked program - goes straight to run()
+        return m.sys.fork(m.copy());
+      }
+    });
+    add(SYS_READ, new SyscallHandler("ipi", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().read(a, b, c);
+      }
+    });
+    add(SYS_WRITE, new SyscallHandler("ipi", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().write(a, b, c);
+      }
+    });
+    add(SYS_OPEN, new SyscallHandler("pii", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.fcntl().open(a, b, c);
+      }
+    });
+    add(SYS_CLOSE, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().close(a);
+      }
+    });
+    add(SYS_WAITPID, new SyscallHandler("ipi", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.wait_().waitpid(a, b, c);
+      }
+    });
+    add(SYS_LINK, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().link(a, b);
+      }
+    });
+    add(SYS_UNLINK, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().unlink(a);
+      }
+    });
+    add(SYS_EXECVE, new SyscallHandler("ppp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().execve(m, a, b, c);
+      }
+    });
+    add(SYS_CHDIR, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().chdir(a);
+      }
+    });
+    add(SYS_CHMOD, new SyscallHandler("pi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().chmod(a, b);
+      }
+    });
+    add(SYS_STAT, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().stat(a, b);
+      }
+    });
+    add(SYS_GETPID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getpid();
+      }
+    });
+    add(SYS_PIPE, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().pipe(a);
+      }
+    });
+    add(SYS_FSTAT, new SyscallHandler("ip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().fstat(a, b);
+      }
+    });
+    add(SYS_TIME, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.time(a);
+      }
+    });
+    add(SYS_GETPPID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getppid();
+      }
+    });
+    add(SYS_GETDENTS, new SyscallHandler("ipi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.getdents(a,b,c);
+      }
+    });
+    add(SYS_FCNTL, new SyscallHandler("iii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.fcntl().fcntl(a,b,c);
+      }
+    });
+    add(SYS_KILL, new SyscallHandler("ii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.signal().kill(a,b);
+      }
+    });
+    add(SYS_LSEEK, new SyscallHandler("iii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().lseek(a,b,c);
+      }
+    });
+    add(SYS_GETTIMEOFDAY, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.gettimeofday(a,b);
+      }
+    });
+    add(SYS_MKDIR, new SyscallHandler("pi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().mkdir(a,b);
+      }
+    });
+    add(SYS_UNAME, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.uname(a);
+      }
+    });
+    add(SYS_GETEUID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().geteuid();
+      }
+    });
+    add(SYS_GETUID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getuid();
+      }
+    });
+    add(SYS_GETEGID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getegid();
+      }
+    });
+    add(SYS_GETGID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getgid();
+      }
+    });
+    add(SYS_BRK, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().brk(a);
+      }
+    });
+    add(SYS_MMAP, new SyscallHandler("piiiii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.mmap(a, b, c, d, e, f);
+      }
+    });
+    add(SYS_WRITEV, new SyscallHandler("ipi", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.writev(a, b, c);
+      }
+    });
+    add(SYS_EXIT_GROUP, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        // should kill all threads.. if any
+        throw new EndOfProgramException();
+      }
+    });
+    add(SYS_FSTAT64, new SyscallHandler("ip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().fstat64(a, b);
+      }
+    });
+    add(SYS_MUNMAP, new SyscallHandler("pi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.munmap(a, b);
+      }
+    });
+    add(SYS_MSYNC, new SyscallHandler("pii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.msync(a, b, c);
+      }
+    });
+    add(SYS_SIGACTION, new SyscallHandler("ipp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.signal().sigaction(a, b, c, 0);
+      }
+    });
+    add(SYS_RT_SIGACTION, new SyscallHandler("ippi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.signal().sigaction(a, b, c, d);
+      }
+    });
+    add(SYS_IOCTL, new SyscallHandler("iip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.ioctl(a, b, c);
+      }
+    });
+    add(SYS_GETPGRP, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getpgrp();
+      }
+    });
+    add(SYS_RT_SIGPROCMASK, new SyscallHandler("ipp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.signal().rt_sigprocmask(a, b, c);
+      }
+    });
+    add(SYS_NANOSLEEP, new SyscallHandler("pp", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.nanosleep(a, b);
+      }
+    });
+    add(SYS_WAIT4, new SyscallHandler("ipip", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.wait_().wait4(a, b, c, d);
+      }
+    });
+    add(SYS_SETSID, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().setsid();
+      }
+    });
+    add(SYS_GETSID, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getsid(a);
+      }
+    });
+    add(SYS_SETPGID, new SyscallHandler("ii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().setpgid(a, b);
+      }
+    });
+    add(SYS_GETCWD, new SyscallHandler("pi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().getcwd(a, b);
+      }
+    });
+    add(SYS_FCNTL64, new SyscallHandler("iii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.fcntl().fcntl64(a, b, c);
+      }
+    });
+    add(SYS_GETDENTS64, new SyscallHandler("ipi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.getdents64(a, b, c);
+      }
+    });
+    add(SYS_DUP, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().dup(a);
+      }
+    });
+    add(SYS_DUP2, new SyscallHandler("ii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().dup2(a, b);
+      }
+    });
+    add(SYS_SETUID, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().setuid(a);
+      }
+    });
+    add(SYS_LLSEEK, new SyscallHandler("iiipi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().llseek(a, b, c, d, e);
+      }
+    });
+    add(SYS_SIGRETURN, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        // return value should be ignored
+        m.restore();
+        m.service();
+        return 0;
+      }
+    });
+    add(SYS_STAT64, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().stat64(a, b);
+      }
+    });
+    add(SYS_SOCKET, new SyscallHandler("iii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().socket(a, b, c);
+      }
+    });
+    add(SYS_CONNECT, new SyscallHandler("ipi", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().connect(a, b, c);
+      }
+    });
+    add(SYS_UMASK, new SyscallHandler("i", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().umask(a);
+      }
+    });
+    add(SYS_LSTAT, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().lstat(a,b);
+      }
+    });
+    add(SYS_ACCESS, new SyscallHandler("pi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().access(a,b);
+      }
+    });
+    add(SYS_LSTAT64, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().lstat64(a,b);
+      }
+    });
+    add(SYS_SETSOCKOPT, new SyscallHandler("iiipi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().setsockopt(a, b, c, d, e);
+      }
+    });
+    // the timeout is not loaded as select only supports blocking (timeout 0)
+    add(SYS_NEWSELECT, new SyscallHandler("ippp", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.select(a, b, c, d, e);
+      }
+    });
+    add(SYS_SYNC, new SyscallHandler("", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().sync();
+      }
+    });
+    add(SYS_BIND, new SyscallHandler("ipi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().bind(a, b, c);
+      }
+    });
+    add(SYS_MOUNT, new SyscallHandler("pppip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.mount(a, b, c, d, e);
+      }
+    });
+    add(SYS_RENAME, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.rename(a, b);
+      }
+    });
+    add(SYS_READLINK, new SyscallHandler("ppi", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().readlink(a, b, c);
+      }
+    });
+    add(SYS_SYMLINK, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().symlink(a, b);
+      }
+    });
+    add(SYS_RMDIR, new SyscallHandler("p", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.unistd().rmdir(a);
+      }
+    });
+    add(SYS_LISTEN, new SyscallHandler("ii", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().listen(a, b);
+      }
+    });
+    add(SYS_ACCEPT, new SyscallHandler("ipp", true) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.socket().accept(a, b, c);
+      }
+    });
+    add(SYS_STATFS, new SyscallHandler("pp", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().statfs(a, b);
+      }
+    });
+    add(SYS_FSTATFS, new SyscallHandler("ip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().fstatfs(a, b);
+      }
+    });
+    add(SYS_STATFS64, new SyscallHandler("pip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().statfs64(a, b, c);
+      }
+    });
+    add(SYS_FSTATFS64, new SyscallHandler("iip", false) {
+      public int call(Machine m, int a, int b, int c, int d, int e, int f) {
+        return m.sys.stat().fstatfs64(a, b, c);
+      }
+    });
+  }
+  
+} // end of class SyscallTable
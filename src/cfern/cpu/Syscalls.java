@@ -96,6 +96,7 @@ public final class Syscalls {
   SYS_LLSEEK = 140,
   SYS_GETDENTS = 141,
   SYS_NEWSELECT = 142,
+  SYS_MSYNC = 144,
   SYS_WRITEV = 146,
   SYS_GETSID = 151,
   SYS_NANOSLEEP = 166,
@@ -161,6 +162,7 @@ public final class Syscalls {
     sys_names[SYS_EXIT_GROUP] = new Name("exit_group");
     sys_names[SYS_FSTAT64] = new Name("fstat64");
     sys_names[SYS_MUNMAP] = new Name("munmap");
+    sys_names[SYS_MSYNC] = new Name("msync");
     sys_names[SYS_SIGACTION] = new Name("sigaction");
     sys_names[SYS_RT_SIGACTION] = new Name("rt_sigaction");
     sys_names[SYS_IOCTL] = new Name("ioctl");
@@ -0,0 +1,107 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+import static cfern.cpu.mips.MipsIsn.*;
+
+/**
+ * A decoded basic block: a run of instructions ending after the delay slot of
+ * a branch, after a syscall, at the end of a page or at the maximum length.
+ * The instructions of a block never change, only the execution count, the
+ * observed successor, the compiled code and the trace starting here. Blocks
+ * are only used by the thread that decoded them.
+ */
+final class Block {
+
+	/**
+	 * Address of the first instruction
+	 */
+	final int start;
+
+	/**
+	 * Address after the last instruction
+	 */
+	final int end;
+
+	/**
+	 * The instructions, in order
+	 */
+	final int[] isns;
+
+	/**
+	 * The instructions pre-decoded for Mips.exec: the handler (see
+	 * MipsIsn.handler()), the register fields and the immediate operand (see
+	 * MipsIsn.operand()).
+	 */
+	final byte[] ops, rs, rt, rd;
+	final int[] imm;
+
+	/**
+	 * Index of the ending branch (followed by the delay slot) or -1
+	 */
+	final int branch;
+
+	/**
+	 * True if the block ends with a syscall
+	 */
+	final boolean syscall;
+
+	/**
+	 * Number of times executed
+	 */
+	int count;
+
+	/**
+	 * Address executed after this block last time, and the number of times in
+	 * a row it has been the same
+	 */
+	int succ, stable;
+
+	/**
+	 * Superblock starting with this block, or null
+	 */
+	Trace trace;
+
+	/**
+	 * Compiled code for the first codelen instructions, or null
+	 */
+	Compiled code;
+	int codelen;
+
+	Block(int start, int[] isns) {
+		this.start = start;
+		this.end = start + (isns.length * 4);
+		this.isns = isns;
+		int len = isns.length;
+		this.ops = new byte[len];
+		this.rs = new byte[len];
+		this.rt = new byte[len];
+		this.rd = new byte[len];
+		this.imm = new int[len];
+		for (int n = 0; n < len; n++) {
+			int isn = isns[n];
+			ops[n] = (byte) handler(isn);
+			rs[n] = (byte) ((isn >>> 21) & 0x1f);
+			rt[n] = (byte) ((isn >>> 16) & 0x1f);
+			rd[n] = (byte) ((isn >>> 11) & 0x1f);
+			imm[n] = operand(isn);
+		}
+		this.branch = len >= 2 && isbranch(isns[len - 2]) ? len - 2 : -1;
+		this.syscall = issyscall(isns[len - 1]);
+	}
+
+	/**
+	 * Returns true if any instruction of this block is in the given region
+	 */
+	boolean within(int addr, int len) {
+		// compare as unsigned
+		return (start & 0xffffffffL) < ((addr & 0xffffffffL) + len) && (end & 0xffffffffL) > (addr & 0xffffffffL);
+	}
+
+	public String toString() {
+		return String.format("Block[%x-%x]", start, end);
+	}
+
+} // end of class Block
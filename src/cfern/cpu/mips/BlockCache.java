@@ -0,0 +1,223 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+import static cfern.cpu.mips.MipsIsn.*;
+
+import java.util.*;
+import cfern.mem.*;
+
+/**
+ * A direct mapped cache of decoded basic blocks, keyed by start address.
+ * Pages that blocks are decoded from are watched, so a write to one (e.g. self
+ * modifying code, or the loader reusing the page) drops the blocks in it.
+ * The blocks are also listed by memory page, so a write only looks at the
+ * blocks it can affect. Not thread safe, there is one cache per machine.
+ */
+final class BlockCache implements CodeListener {
+
+	/**
+	 * Number of entries in the table, must be a power of 2
+	 */
+	private static final int size = 0x4000;
+
+	/**
+	 * Maximum instructions in a block (not including delay slot)
+	 */
+	private static final int maxlen = 64;
+
+	/**
+	 * Blocks are not decoded across this boundary, so the instructions of a
+	 * block (apart from a delay slot) are always on one memory page.
+	 */
+	private static final int boundary = 0x1000;
+
+	/**
+	 * The blocks, indexed by word address
+	 */
+	private final Block[] table = new Block[size];
+
+	/**
+	 * Bits of address in a memory page (see Memory.watch)
+	 */
+	private static final int pagebits = 16;
+
+	/**
+	 * Blocks on a memory page and heads of traces with a block on the page.
+	 * The list may still have blocks since replaced in the table, they are
+	 * dropped when it reaches its limit.
+	 */
+	private static final class PageBlocks {
+		final ArrayList<Block> blocks = new ArrayList<Block>();
+		int limit = 64;
+	}
+
+	/**
+	 * The blocks of each memory page that has any, by page number
+	 */
+	private final Map<Integer,PageBlocks> pages = new HashMap<Integer,PageBlocks>();
+
+	/**
+	 * Scratch space for decoding (max length plus delay slot)
+	 */
+	private final int[] buf = new int[maxlen + 1];
+
+	/**
+	 * Memory to decode from
+	 */
+	private final Memory mem;
+
+	/**
+	 * Statistics
+	 */
+	private int decoded, dropped;
+
+	/**
+	 * Create a block cache for the given memory and start watching it for
+	 * changes
+	 */
+	BlockCache(Memory mem) {
+		this.mem = mem;
+		mem.setCodeListener(this);
+	}
+
+	/**
+	 * Get the block starting at the given address, decoding it if necessary
+	 */
+	Block get(int pc) {
+		Block b = table[(pc >>> 2) & (size - 1)];
+		if (b != null && b.start == pc)
+			return b;
+		return decode(pc);
+	}
+
+	/**
+	 * Get the block starting at the given address if it is cached, else null
+	 */
+	Block peek(int pc) {
+		Block b = table[(pc >>> 2) & (size - 1)];
+		return b != null && b.start == pc ? b : null;
+	}
+
+	/**
+	 * Decode and cache the block starting at pc
+	 */
+	private Block decode(int pc) {
+		int[] buf = this.buf;
+		int n = 0, a = pc;
+		mem.watch(pc);
+		for (;;) {
+			int isn = mem.load_word(a);
+			buf[n++] = isn;
+			a += 4;
+			if (isbranch(isn)) {
+				// delay slot may be on the next page
+				mem.watch(a);
+				buf[n++] = mem.load_word(a);
+				break;
+			}
+			if (issyscall(isn) || n == maxlen || (a & (boundary - 1)) == 0)
+				break;
+		}
+		Block b = new Block(pc, Arrays.copyOf(buf, n));
+		table[(pc >>> 2) & (size - 1)] = b;
+		list(b, b);
+		decoded++;
+		return b;
+	}
+
+	/**
+	 * Attach a trace to its first block, and list the block on the pages of
+	 * the trace so the trace is dropped if any of them change
+	 */
+	void traced(Block head, Trace trace) {
+		head.trace = trace;
+		for (int n = 1; n < trace.blocks.length; n++)
+			list(trace.blocks[n], head);
+	}
+
+	/**
+	 * Add b to the lists of the pages of block c, if not already there
+	 */
+	private void list(Block c, Block b) {
+		int last = (c.end - 1) >>> pagebits;
+		for (int p = c.start >>> pagebits; p <= last; p++) {
+			Integer key = Integer.valueOf(p);
+			PageBlocks pb = pages.get(key);
+			if (pb == null) {
+				pages.put(key, pb = new PageBlocks());
+			} else {
+				if (pb.blocks.size() >= pb.limit)
+					prune(pb);
+				if (b != c && pb.blocks.contains(b))
+					continue;
+			}
+			pb.blocks.add(b);
+		}
+	}
+
+	/**
+	 * Remove blocks that are no longer cached from the list
+	 */
+	private void prune(PageBlocks pb) {
+		Iterator<Block> i = pb.blocks.iterator();
+		while (i.hasNext())
+			if (!cached(i.next()))
+				i.remove();
+		pb.limit = Math.max(64, pb.blocks.size() * 2);
+	}
+
+	/**
+	 * Returns true if the block is in the table
+	 */
+	private boolean cached(Block b) {
+		return table[(b.start >>> 2) & (size - 1)] == b;
+	}
+
+	/**
+	 * Drop all blocks in the given region, and traces that include them
+	 */
+	public void codeChanged(int addr, int len) {
+		if (len <= 0)
+			return;
+		int first = addr >>> pagebits, last = (addr + len - 1) >>> pagebits;
+		// compare as unsigned
+		long start = addr & 0xffffffffL, end = start + len;
+		for (int p = first; p <= last; p++) {
+			Integer key = Integer.valueOf(p);
+			PageBlocks pb = pages.get(key);
+			if (pb == null)
+				continue;
+			for (Block b : pb.blocks) {
+				if (b.within(addr, len)) {
+					if (cached(b)) {
+						table[(b.start >>> 2) & (size - 1)] = null;
+						dropped++;
+					}
+				} else if (b.trace != null && b.trace.within(addr, len)) {
+					b.trace = null;
+				}
+			}
+			if (start <= ((long) p << pagebits) && end >= ((long) (p + 1) << pagebits))
+				// whole page changed, nothing on it is cached now
+				pages.remove(key);
+			else
+				prune(pb);
+		}
+	}
+
+	/**
+	 * Drop all blocks (e.g. for execve)
+	 */
+	void clear() {
+		Arrays.fill(table, null);
+		pages.clear();
+	}
+
+	public String toString() {
+		return String.format("blocks decoded=%d dropped=%d", decoded, dropped);
+	}
+
+} // end of class BlockCache
@@ -0,0 +1,308 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+
+import java.io.*;
+import java.util.*;
+
+/**
+ * A minimal class file writer for the dynamic compiler. Supports one public
+ * final class with a no-args constructor and methods containing straight line
+ * code and exception handlers. The class file version is for the old verifier,
+ * so no stack map frames are needed.
+ * See chapter 4 of the JVM specification.
+ */
+final class ClassFile {
+
+	/** constant pool tags */
+	private static final int utf8 = 1, integer = 3, longtag = 5, classtag = 7, methodref = 10, nametype = 12;
+
+	/** some opcodes */
+	static final int
+	ICONST_0 = 0x03,
+	LCONST_0 = 0x09,
+	BIPUSH = 0x10,
+	SIPUSH = 0x11,
+	LDC_W = 0x13,
+	LDC2_W = 0x14,
+	ILOAD = 0x15,
+	LLOAD = 0x16,
+	ALOAD = 0x19,
+	IALOAD = 0x2e,
+	ISTORE = 0x36,
+	LSTORE = 0x37,
+	IASTORE = 0x4f,
+	POP = 0x57,
+	IADD = 0x60,
+	ISUB = 0x64,
+	LSUB = 0x65,
+	LMUL = 0x69,
+	ISHL = 0x78,
+	ISHR = 0x7a,
+	IUSHR = 0x7c,
+	LUSHR = 0x7d,
+	IAND = 0x7e,
+	LAND = 0x7f,
+	IOR = 0x80,
+	IXOR = 0x82,
+	I2L = 0x85,
+	L2I = 0x88,
+	I2B = 0x91,
+	I2S = 0x93,
+	GOTO = 0xa7,
+	RETURN = 0xb1,
+	INVOKEVIRTUAL = 0xb6,
+	INVOKESPECIAL = 0xb7,
+	ATHROW = 0xbf;
+
+	/** the constant pool, less the count */
+	private final ByteArrayOutputStream pool = new ByteArrayOutputStream();
+	private final DataOutputStream poolout = new DataOutputStream(pool);
+
+	/** index of each constant already in the pool */
+	private final Map<String,Integer> poolmap = new HashMap<String,Integer>();
+
+	/** next free constant pool index */
+	private int poolnext = 1;
+
+	/** the methods */
+	private final ByteArrayOutputStream methods = new ByteArrayOutputStream();
+	private final DataOutputStream methodsout = new DataOutputStream(methods);
+	private int methodcount = 0;
+
+	/** this and super class in internal form, e.g. java/lang/Object */
+	private final String name, sup;
+
+	/** code of current method */
+	private final ByteArrayOutputStream code = new ByteArrayOutputStream();
+
+	/** exception table of current method, and number of entries */
+	private final ByteArrayOutputStream handlers = new ByteArrayOutputStream();
+	private final DataOutputStream handlersout = new DataOutputStream(handlers);
+	private int handlercount = 0;
+
+	ClassFile(String name, String sup) {
+		this.name = name;
+		this.sup = sup;
+		// constructor just calls super()
+		aload(0);
+		invoke(INVOKESPECIAL, sup, "<init>", "()V");
+		op(RETURN);
+		method("<init>", "()V", 1, 1);
+	}
+
+	/**
+	 * Add a constant to the pool unless it is already there
+	 */
+	private int constant(String key, int tag, Object v1, Object v2) {
+		Integer i = poolmap.get(key);
+		if (i != null)
+			return i.intValue();
+		int index = poolnext++;
+		try {
+			poolout.writeByte(tag);
+			switch (tag) {
+				case utf8:
+					poolout.writeUTF((String) v1);
+					break;
+				case integer:
+					poolout.writeInt(((Integer) v1).intValue());
+					break;
+				case longtag:
+					poolout.writeLong(((Long) v1).longValue());
+					// longs take two entries
+					poolnext++;
+					break;
+				case classtag:
+					poolout.writeShort(((Integer) v1).intValue());
+					break;
+				default:
+					poolout.writeShort(((Integer) v1).intValue());
+					poolout.writeShort(((Integer) v2).intValue());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		poolmap.put(key, Integer.valueOf(index));
+		return index;
+	}
+
+	private int utf8(String s) {
+		return constant("U" + s, utf8, s, null);
+	}
+
+	private int classref(String cls) {
+		return constant("C" + cls, classtag, Integer.valueOf(utf8(cls)), null);
+	}
+
+	private int methodref(String cls, String mname, String desc) {
+		int c = classref(cls);
+		int nt = constant("N" + mname + desc, nametype, Integer.valueOf(utf8(mname)), Integer.valueOf(utf8(desc)));
+		return constant("M" + cls + "." + mname + desc, methodref, Integer.valueOf(c), Integer.valueOf(nt));
+	}
+
+	/**
+	 * Emit a single byte opcode
+	 */
+	void op(int op) {
+		code.write(op);
+	}
+
+	private void op2(int op, int arg) {
+		code.write(op);
+		code.write(arg >> 8);
+		code.write(arg);
+	}
+
+	void iload(int local) {
+		code.write(ILOAD);
+		code.write(local);
+	}
+
+	void istore(int local) {
+		code.write(ISTORE);
+		code.write(local);
+	}
+
+	void lload(int local) {
+		code.write(LLOAD);
+		code.write(local);
+	}
+
+	void lstore(int local) {
+		code.write(LSTORE);
+		code.write(local);
+	}
+
+	void aload(int local) {
+		code.write(ALOAD);
+		code.write(local);
+	}
+
+	/**
+	 * Push an int constant using the shortest instruction
+	 */
+	void iconst(int v) {
+		if (v >= -1 && v <= 5)
+			code.write(ICONST_0 + v);
+		else if (v >= Byte.MIN_VALUE && v <= Byte.MAX_VALUE) {
+			code.write(BIPUSH);
+			code.write(v);
+		} else if (v >= Short.MIN_VALUE && v <= Short.MAX_VALUE)
+			op2(SIPUSH, v);
+		else
+			op2(LDC_W, constant("I" + v, integer, Integer.valueOf(v), null));
+	}
+
+	/**
+	 * Push a long constant
+	 */
+	void lconst(long v) {
+		if (v == 0 || v == 1)
+			code.write(LCONST_0 + (int) v);
+		else
+			op2(LDC2_W, constant("J" + v, longtag, Long.valueOf(v), null));
+	}
+
+	/**
+	 * Get the offset of the next instruction in the current method
+	 */
+	int pos() {
+		return code.size();
+	}
+
+	/**
+	 * Emit a goto to the given offset in the current method
+	 */
+	void jump(int target) {
+		op2(GOTO, target - pos());
+	}
+
+	/**
+	 * Add an exception handler at offset handler for any exception thrown by
+	 * the code from offset start to end (exclusive)
+	 */
+	void handler(int start, int end, int handler) {
+		try {
+			handlersout.writeShort(start);
+			handlersout.writeShort(end);
+			handlersout.writeShort(handler);
+			handlersout.writeShort(0); // any
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		handlercount++;
+	}
+
+	/**
+	 * Emit a method call
+	 */
+	void invoke(int op, String cls, String mname, String desc) {
+		op2(op, methodref(cls, mname, desc));
+	}
+
+	/**
+	 * Finish the current code as a public method
+	 */
+	void method(String mname, String desc, int maxstack, int maxlocals) {
+		byte[] c = code.toByteArray();
+		code.reset();
+		byte[] h = handlers.toByteArray();
+		handlers.reset();
+		int hc = handlercount;
+		handlercount = 0;
+		if (c.length >= 65536)
+			throw new RuntimeException("method too long: " + c.length);
+		try {
+			DataOutputStream out = methodsout;
+			out.writeShort(0x0001); // public
+			out.writeShort(utf8(mname));
+			out.writeShort(utf8(desc));
+			out.writeShort(1);
+			out.writeShort(utf8("Code"));
+			out.writeInt(12 + c.length + h.length);
+			out.writeShort(maxstack);
+			out.writeShort(maxlocals);
+			out.writeInt(c.length);
+			out.write(c);
+			out.writeShort(hc); // exceptions
+			out.write(h);
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		methodcount++;
+	}
+
+	/**
+	 * Get the class file bytes
+	 */
+	byte[] toByteArray() {
+		int thisc = classref(name);
+		int superc = classref(sup);
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(pool.size() + methods.size() + 32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeInt(0xcafebabe);
+			out.writeShort(0); // minor
+			out.writeShort(49); // java 5, for the old verifier
+			out.writeShort(poolnext);
+			pool.writeTo(out);
+			out.writeShort(0x0001 | 0x0010 | 0x0020); // public final super
+			out.writeShort(thisc);
+			out.writeShort(superc);
+			out.writeShort(0); // interfaces
+			out.writeShort(0); // fields
+			out.writeShort(methodcount);
+			methods.writeTo(out);
+			out.writeShort(0); // attributes
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		return bytes.toByteArray();
+	}
+
+} // end of class ClassFile
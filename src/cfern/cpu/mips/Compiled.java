@@ -0,0 +1,54 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+import cfern.mem.Memory;
+
+/**
+ * Superclass of the classes generated by MipsCompiler. Has to be public as
+ * each generated class is in its own class loader (so it can be unloaded once
+ * the block is dropped).
+ */
+public abstract class Compiled {
+
+	/**
+	 * Machine to call back for instructions that are not compiled
+	 */
+	private Mips machine;
+
+	protected Compiled() {
+		// yawn
+	}
+
+	/**
+	 * Set the machine after construction
+	 */
+	final void setMachine(Mips machine) {
+		this.machine = machine;
+	}
+
+	/**
+	 * Run the compiled instructions. Only updates pc and nextpc before
+	 * interpreting an instruction or if a memory access throws.
+	 */
+	public abstract void run(int[] reg, Memory mem);
+
+	/**
+	 * Interpret one (non branch) instruction, with pc as the interpreter would
+	 * have it
+	 */
+	protected final void call(int isn, int pc) {
+		machine.setpc(pc);
+		machine.call(isn);
+	}
+
+	/**
+	 * Set pc (and nextpc) as the interpreter would have it
+	 */
+	protected final void setpc(int pc) {
+		machine.setpc(pc);
+	}
+
+} // end of class Compiled
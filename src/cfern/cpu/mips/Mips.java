@@ -48,6 +48,18 @@ public final class Mips extends Machine {
 	/** floating point emulator */
 	private final MipsCoproc coproc;
 
+	/** decoded blocks for the fast scheduler */
+	private final BlockCache blocks;
+
+	/** compiler for hot blocks */
+	private final MipsCompiler compiler;
+
+	/** instructions retired by the debug scheduler */
+	private long debugisns;
+
+	/** superblock builder for hot blocks */
+	private final Tracer tracer;
+
 	/**
 	 * Signal return address
 	 */
@@ -60,6 +72,9 @@ public final class Mips extends Machine {
 	public Mips() {
 		super();
 		coproc = new MipsCoproc(this, reg);
+		blocks = new BlockCache(mem);
+		compiler = new MipsCompiler(this);
+		tracer = new Tracer(blocks);
 	}
 
 	/**
@@ -69,6 +84,9 @@ public final class Mips extends Machine {
 	private Mips(Mips other) {
 		super(other);
 		coproc = new MipsCoproc(this, reg);
+		blocks = new BlockCache(mem);
+		compiler = new MipsCompiler(this);
+		tracer = new Tracer(blocks);
 
 		// copy other machine
 		fun.load(other.fun);
@@ -101,6 +119,7 @@ public final class Mips extends Machine {
 		// TODO read stack size from env
 		mem.clear();
 		mem.allocstack(4 * 65536);
+		blocks.clear();
 		fun.clear();
 		try {
 			elf.load(mem);
@@ -218,14 +237,23 @@ public final class Mips extends Machine {
 			opt.println("stack bt: %s", backtrace());
 			exitval = -1;
 		}
+		opt.info("%s, %s, %s", blocks, compiler, tracer);
 		return exitval;
 	}
 
+	/**
+	 * Instructions retired by either scheduler. The fast scheduler counts
+	 * whole blocks, so this is approximate if a block faults.
+	 */
+	protected long instructions() {
+		return tracer.blockisns + tracer.traceisns + debugisns;
+	}
+
 	/**
 	 * Run a program with debugging options (that may slow down execution)
 	 */
 	private void rundebug() {
-		int isn, op;
+		int isn;
 		boolean bp = false, call = false, ret = false;
 
 		for (;;) {
@@ -233,7 +261,6 @@ public final class Mips extends Machine {
 			//service();
 
 			isn = mem.load_word(pc);
-			op = isn >>> 26;
 
 			if (opt.disasm || bp) {
 				if (opt.regprint)
@@ -245,10 +272,8 @@ public final class Mips extends Machine {
 
 			pc = nextpc;
 			nextpc = nextpc + 4;
-			if (op != 0)
-				call_op(isn);
-			else
-				call_fn(isn);
+			debugisns++;
+			call(isn);
 
 			// just to humour myself
 			// note that $26 and $27 are also always 0
@@ -269,41 +294,212 @@ public final class Mips extends Machine {
 			}
 
 			// do a funcall trace, but calls/rets don't actually happen until the next instruction
-			if (op == OP_JAL) {
+			if (iscall(isn))
 				call = true;
-			} else if (op == 0) {
-				int fn = isn & 0x3f;
-				if (fn == FN_JALR)
-					call = true;
-				else if (fn == FN_JR && ((isn >>> 21) & 0x1f) == 31) // rs
+			else if (isreturn(isn))
 				ret = true;
-			}
 		} // infinite loop
 	}
 
 	/**
-	 * Run a program as fast as possible. Signals are not checked until a syscall
+	 * Run a program as fast as possible. Signals are not checked until a syscall.
+	 * Instructions are fetched a basic block at a time from the block cache, a
+	 * block only ever ends with a branch and delay slot, a syscall or the next
+	 * sequential instruction, so pc is always the start of the next block.
+	 * Blocks executed often enough are compiled, the compiled part does not
+	 * update pc so it is set before interpreting the rest of the block.
+	 * Hot blocks get a trace, which is run instead of the block.
 	 */
 	private void runfast() {
-		Memory mem = super.mem;
+		BlockCache blocks = this.blocks;
+		MipsCompiler compiler = this.compiler;
+		Tracer tracer = this.tracer;
+		int[] reg = this.reg;
 		for (;;) {
-			int isn = mem.load_word(pc);
-			// faster to do this even though there's two getfields
-			pc = nextpc;
-			nextpc += 4;
-			if (isn >>> 26 != 0)
-				call_op(isn);
-			// faster to check for nop here than above call_op
-			else if (isn != 0)
-				call_fn(isn);
+			Block b = blocks.get(pc);
+			Trace t = b.trace;
+			if (t != null) {
+				runtrace(t);
+				continue;
+			}
+
+			byte[] ops = b.ops, rs = b.rs, rt = b.rt, rd = b.rd;
+			int[] imm = b.imm;
+			int n = 0;
+			int count = ++b.count;
+			Compiled code = b.code;
+			if (code != null) {
+				code.run(reg, mem);
+				n = b.codelen;
+				pc = b.start + (n * 4);
+				nextpc = pc + 4;
+			} else if (count == MipsCompiler.threshold) {
+				compiler.compile(b);
+			}
+			for (; n < ops.length; n++) {
+				int h = ops[n];
+				// faster to do this even though there's two getfields
+				pc = nextpc;
+				nextpc += 4;
+				// faster to check for nop here than in exec
+				if (h != 0)
+					exec(h, rs[n], rt[n], rd[n], imm[n]);
+			}
+			tracer.blockisns += ops.length;
+
+			// remember where the block went for the trace builder
+			if (b.succ == pc) {
+				b.stable++;
+			} else {
+				b.succ = pc;
+				b.stable = 0;
+			}
+			if (count >= Tracer.threshold)
+				tracer.build(b);
 		}
 	}
 
 	/**
-	 * calculate nextpc from (26 bit) instr_index to (28 bit) target within 256mb region
+	 * Run the blocks of a trace while they follow each other, return at a
+	 * side exit or the end of the trace.
 	 */
-	private void target(int isn) {
-		nextpc = (pc & 0xf0000000) | ((isn & 0x3FFFFFF) << 2);
+	private void runtrace(Trace t) {
+		Block[] blocks = t.blocks;
+		Tracer tracer = this.tracer;
+		tracer.entered++;
+		for (int n = 0; n < blocks.length; n++) {
+			Block b = blocks[n];
+			if (n > 0 && pc != b.start) {
+				tracer.exits++;
+				return;
+			}
+			runfolded(b);
+			tracer.traceisns += b.isns.length;
+		}
+	}
+
+	/**
+	 * Run a block with pc and nextpc only set once at the end (or before a
+	 * syscall). The branch is evaluated first, then the delay slot is run with
+	 * pc already at the branch target, just as the interpreter would have it.
+	 */
+	private void runfolded(Block b) {
+		int[] isns = b.isns;
+		int n = 0;
+		int end = b.branch >= 0 ? b.branch : b.syscall ? isns.length - 1 : isns.length;
+		Compiled code = b.code;
+		if (code != null) {
+			// sets pc itself if it faults
+			code.run(reg, mem);
+			n = b.codelen;
+		} else if (++b.count == MipsCompiler.threshold) {
+			compiler.compile(b);
+		}
+		try {
+			for (; n < end; n++)
+				exec(b, n);
+		} catch (RuntimeException e) {
+			// so the faulty instruction is reported
+			pc = b.start + (n * 4) + 4;
+			nextpc = pc + 4;
+			throw e;
+		}
+
+		if (b.branch >= 0) {
+			int thispc = b.start + (n * 4) + 4;
+			int target = call_branch(isns[n], thispc, thispc + 4);
+			pc = target;
+			nextpc = target + 4;
+			exec(b, n + 1);
+		} else {
+			pc = b.end;
+			nextpc = pc + 4;
+			if (b.syscall)
+				exec(b, n);
+		}
+	}
+
+	/**
+	 * Evaluate a branch or jump, including any link, and return the address of
+	 * the instruction after the delay slot. thispc and next are the values of
+	 * pc and nextpc in the interpreter, i.e. the address of the delay slot and
+	 * the one after it. Used by the interpreter and for the branch at the end
+	 * of a folded block. Does not change pc or nextpc (except for coprocessor
+	 * branches).
+	 */
+	private int call_branch (int isn, int thispc, int next) {
+		int[] reg = this.reg;
+		int rt = (isn >>> 16) & 0x1f;
+		int rs = (isn >>> 21) & 0x1f;
+		// calculate a pc relative branch
+		int rel = thispc + (((short) isn) * 4);
+
+		switch (isn >>> 26) {
+			case OP_SPECIAL: // jump register, and link if jalr
+				if ((isn & 0x3f) == FN_JALR)
+					reg[(isn >>> 11) & 0x1f] = next;
+				return reg[rs];
+			case OP_REGIMM:
+				// NOTE: the and link versions link, then conditionally branch
+				switch (rt) {
+					case RT_BGEZAL: // branch on greater than or equal to zero and link
+						reg[31] = next;
+						return reg[rs] >= 0 ? rel : next;
+					case RT_BGEZ: // branch if greater than or equal to zero
+						return reg[rs] >= 0 ? rel : next;
+					case RT_BLTZAL: // branch on less than zero and link
+						reg[31] = next;
+						return reg[rs] < 0 ? rel : next;
+					case RT_BLTZ: // branch on less than zero
+						return reg[rs] < 0 ? rel : next;
+					default:
+						throw new RuntimeException("invalid rt: " + rt);
+				}
+			case OP_J: // jump within 256mb region
+				return (thispc & 0xf0000000) | ((isn & 0x3FFFFFF) << 2);
+			case OP_JAL: // jump and link
+				reg[31] = next;
+				return (thispc & 0xf0000000) | ((isn & 0x3FFFFFF) << 2);
+			case OP_BLEZ: // branch on less than or equal to zero
+				return reg[rs] <= 0 ? rel : next;
+			case OP_BEQ: // branch on equal
+				return reg[rs] == reg[rt] ? rel : next;
+			case OP_BNE: // branch on not equal
+				return reg[rs] != reg[rt] ? rel : next;
+			case OP_BGTZ: // branch on greater than zero
+				return reg[rs] > 0 ? rel : next;
+			default:
+				// coprocessor branch
+				pc = thispc;
+				nextpc = next;
+				call(isn);
+				return nextpc;
+		}
+	}
+
+	/**
+	 * Set pc, and nextpc to the instruction after it, as the interpreter has
+	 * them while running the instruction before pc (called by compiled code)
+	 */
+	void setpc (int pc) {
+		this.pc = pc;
+		this.nextpc = pc + 4;
+	}
+
+	/**
+	 * Decode and interpret a single instruction (called by compiled code for
+	 * instructions that do not branch, and by the debug scheduler).
+	 */
+	void call (int isn) {
+		if (isn != 0)
+			exec(handler(isn), (isn >>> 21) & 0x1f, (isn >>> 16) & 0x1f, (isn >>> 11) & 0x1f, operand(isn));
+	}
+
+	/**
+	 * Interpret instruction n of a block
+	 */
+	private void exec (Block b, int n) {
+		exec(b.ops[n], b.rs[n], b.rt[n], b.rd[n], b.imm[n]);
 	}
 
 	/**
@@ -373,8 +569,8 @@ public final class Mips extends Machine {
 
 	/**
 	 * Calculates the new pc from a signed 16 bit immediate offset, ie a pc
-	 * relative branch. Only to be used by the float machine (call_op has its own
-	 * version)
+	 * relative branch. Only to be used by the float machine (call_branch has its
+	 * own version)
 	 */
 	void branch (int isn) {
 		short simm = (short) isn;
@@ -382,223 +578,160 @@ public final class Mips extends Machine {
 	}
 
 	/**
-	 * Call a normal operation instruction. Only needs fields rt,rs,simm.
-	 * Instructions should RETURN unless they need a relative branch in which case
-	 * they should BREAK. A bit ugly but faster.
+	 * Execute a pre-decoded instruction (see Block). h is the handler from
+	 * MipsIsn.handler(), either an opcode or H_FN plus the function of a
+	 * register instruction, and imm is the operand from MipsIsn.operand().
+	 * Branches and jumps are evaluated by call_branch.
 	 */
-	private void call_op (int isn) {
-		int rt = (isn >>> 16) & 0x1f;
-		int rs = (isn >>> 21) & 0x1f;
+	private void exec (int h, int rs, int rt, int rd, int imm) {
 		int[] reg = this.reg; // hack to avoid loads of getfields
-		short simm = (short) isn;
 
-		// slightly faster to re-evaluate op than pass it as a parameter
-		switch (isn >>> 26) {
-			case OP_SPECIAL:
-				// not actually used
-				call_fn(isn);
+		switch (h) {
+			case 0: // nop
+				return;
+			case OP_REGIMM: // a register-immediate instruction (all branches)
+			case OP_J:
+			case OP_JAL:
+			case OP_BLEZ:
+			case OP_BEQ:
+			case OP_BNE:
+			case OP_BGTZ:
+			case H_FN + FN_JR: // jump register (function call return if rs=31)
+			case H_FN + FN_JALR: // jump and link register
+				nextpc = call_branch(imm, pc, nextpc);
 				return;
-			case OP_REGIMM:
-				// a register-immediate instruction (all branches)
-				switch (rt) {
-					case RT_BGEZAL: // branch on greater than or equal to zero and link
-						reg[31] = nextpc; 
-						// fall through
-					case RT_BGEZ: // branch if greater than or equal to zero
-						if (reg[rs] >= 0)
-							break;
-						return;
-					case RT_BLTZAL: // branch on less than zero and link
-						// NOTE: by this, they mean link, then conditionally branch
-						reg[31] = nextpc;
-						// fall through
-					case RT_BLTZ: // branch on less than zero
-						if (reg[rs] < 0)
-							break;
-						return;
-					default:
-						throw new RuntimeException("invalid rt: " + rt);
-				}
-				break;
 			case OP_COP1: // call coprocessor
-				coproc.call_coproc(isn, rt, rs);
+				coproc.call_coproc(imm, rt, rs);
 				return;
 			case OP_LWC1: // load word from mem to coprocessor
-				coproc.store_word(rt, mem.load_word(reg[rs] + simm));
+				coproc.store_word(rt, mem.load_word(reg[rs] + imm));
 				return;
 			case OP_SWC1: // store word from coprocessor to memory
-				mem.store_word(reg[rs] + simm, coproc.load_word(rt));
-				return;
-			case OP_J: // branch within 256mb region
-				target(isn);
-				return;
-			case OP_JAL: // jump and link
-				reg[31] = nextpc; // thispc + 8 ?
-				target(isn);
-				return;
-			case OP_BLEZ: // branch on less than or equal to zero
-				if (reg[rs] <= 0)
-					break;
-				return;
-			case OP_BEQ: // branch on equal
-				if (reg[rs] == reg[rt])
-					break;
-				return;
-			case OP_BNE: // branch on not equal
-				if (reg[rs] != reg[rt])
-					break;
+				mem.store_word(reg[rs] + imm, coproc.load_word(rt));
 				return;
 			case OP_ADDIU: // add immediate unsigned word
-				reg[rt] = reg[rs] + simm;
+				reg[rt] = reg[rs] + imm;
 				return;
 			case OP_ANDI: // and immediate (zero extend)
-				reg[rt] = reg[rs] & (simm & 0xffff);
+				reg[rt] = reg[rs] & imm;
 				return;
 			case OP_XORI: // exclusive or immediate (zx)
-				reg[rt] = reg[rs] ^ (simm & 0xffff);
-				return;
-			case OP_BGTZ: // branch on greater than zero
-				if (reg[rs] > 0) break;
+				reg[rt] = reg[rs] ^ imm;
 				return;
 			case OP_SLTI: // set on less than immediate. compare both as signed.
-				reg[rt] = reg[rs] < simm ? 1 : 0;
+				reg[rt] = reg[rs] < imm ? 1 : 0;
 				return;
 			case OP_SLTIU: // set on less than immediate unsigned. sign extend imm and compare as unsigned.
-				reg[rt] = ((reg[rs] & 0xffffffffL) < (simm & 0xffffffffL)) ? 1 : 0;
+				reg[rt] = ((reg[rs] & 0xffffffffL) < (imm & 0xffffffffL)) ? 1 : 0;
 				return;
 			case OP_ORI: // or immediate. zx
-				reg[rt] = reg[rs] | (simm & 0xffff);
+				reg[rt] = reg[rs] | imm;
 				return;
 			case OP_SW: // store word.
-				mem.store_word(reg[rs] + simm, reg[rt]);
+				mem.store_word(reg[rs] + imm, reg[rt]);
 				return;
 			case OP_SH: // store halfword
-				mem.store_half(reg[rs] + simm, ((short) (reg[rt] & 0xffff)));
+				mem.store_half(reg[rs] + imm, ((short) (reg[rt] & 0xffff)));
 				return;
 			case OP_SB: // store byte
-				mem.store_byte(reg[rs] + simm, ((byte) (reg[rt] & 0x000000ff)));
+				mem.store_byte(reg[rs] + imm, ((byte) (reg[rt] & 0x000000ff)));
 				return;
-			case OP_LUI: // load upper immediate (la in ncc)
-				reg[rt] = /*((int)simm)*/ simm << 16;
+			case OP_LUI: // load upper immediate (la in ncc), already shifted
+				reg[rt] = imm;
 				return;
 			case OP_LW: // load word. will suck for addresses over 2gb ? no, shouldn't matter
-				reg[rt] = mem.load_word(reg[rs] + simm);
+				reg[rt] = mem.load_word(reg[rs] + imm);
 				return;
 			case OP_LB: // load byte (signed)
-				reg[rt] = mem.load_byte(reg[rs] + simm);
+				reg[rt] = mem.load_byte(reg[rs] + imm);
 				return;
 			case OP_LBU: // load unsigned byte
-				reg[rt] = mem.load_byte(reg[rs] + simm) & 0x000000ff;
+				reg[rt] = mem.load_byte(reg[rs] + imm) & 0x000000ff;
 				return;
 			case OP_LHU: // load halfword unsigned
-				reg[rt] = (mem.load_half(reg[rs] + simm) & 0xffff);
+				reg[rt] = (mem.load_half(reg[rs] + imm) & 0xffff);
 				return;
 			case OP_LH: // load halfword. sign extend
-				reg[rt] = mem.load_half(reg[rs] + simm);
+				reg[rt] = mem.load_half(reg[rs] + imm);
 				return;
 			case OP_LWL: { // load word left. the horror!
-				int a = reg[rs] + simm;
+				int a = reg[rs] + imm;
 				int s = (a & 3) << 3;
 				reg[rt] = (mem.load_word(a & ~3) << s) | (reg[rt] & ((int) (0xffffffffL >>> (32 - s))));
 				return;
 			} 
 			case OP_LWR: { // load word right. least signicant byte at eff.addr.
-				int a = reg[rs] + simm;
+				int a = reg[rs] + imm;
 				int s = ((a & 3) + 1) << 3;
 				reg[rt] = (mem.load_word(a & ~3) >>> (32 - s)) | (reg[rt] & ((int) (0xffffffffL << s)));
 				return;
 			} 
 			case OP_SWL: { // store word left
-				int a = reg[rs] + simm; // msb
+				int a = reg[rs] + imm; // msb
 				int b = a & ~3; // aligned address
 				int s = (a & 3) << 3;
 				mem.store_word(b, (reg[rt] >>> s) | (mem.load_word(b) & ((int) (0xffffffffL << (32 - s)))));
 				return;
 			}
 			case OP_SWR: { // store word right
-				int a = reg[rs] + simm; // lsb
+				int a = reg[rs] + imm; // lsb
 				int b = a & ~3;
 				int s = ((a & 3) + 1) << 3;
 				mem.store_word(b, (reg[rt] << (32 - s)) | (mem.load_word(b) & ((int) (0xffffffffL >>> s))));
 				return;
 			}
 
-			default: // instruction not implemented
-				throw new RuntimeException(String.format("invalid op %02x", isn >> 26));
-		}
-
-		// do a relative branch. basically a manually inlined branch()
-		nextpc = pc + (simm * 4); // thispc + (simm << 2) + 4 ?
-	} // end of call_op()
-
-	/**
-	 * a register instruction. uses fn,rd,rt,rs and sa (not often, manaully decode)
-	 */
-	private void call_fn (int isn) {
-		int[] reg = this.reg; // hack to avoid getfield
-		int rd = (isn >>> 11) & 0x1f;
-		int rt = (isn >>> 16) & 0x1f;
-		int rs = (isn >>> 21) & 0x1f;
-		int fn = isn & 0x3f;
-
-		switch (fn) {
-			case FN_SYSCALL: // syscall
-				syscall(isn);
+			// register instructions
+			case H_FN + FN_SYSCALL: // syscall
+				syscall(imm);
 				// after a syscall check there are no outstanding signals
 				// can't do it generically because we can't change the machine state during a syscall
 				service();
 				return;
-			case FN_SLL: // shift word left logical. also nop if sa,rd,rt = 0
-				reg[rd] = reg[rt] << ((isn >>> 6) & 0x1f); 
+			case H_FN + FN_SLL: // shift word left logical. also nop if sa,rd,rt = 0
+				reg[rd] = reg[rt] << imm; 
 				return;
-			case FN_SRL: // shift word right logical
-				reg[rd] = reg[rt] >>> ((isn >>> 6) & 0x1f); 
+			case H_FN + FN_SRL: // shift word right logical
+				reg[rd] = reg[rt] >>> imm; 
 				return;
-			case FN_SRA: // shift word right arithmetic (preserve sign)
-				reg[rd] = reg[rt] >> ((isn >>> 6) & 0x1f); 
+			case H_FN + FN_SRA: // shift word right arithmetic (preserve sign)
+				reg[rd] = reg[rt] >> imm; 
 				return;
-			case FN_SRLV: // shift word right logical variable (shift amount in reg[rs])
+			case H_FN + FN_SRLV: // shift word right logical variable (shift amount in reg[rs])
 				reg[rd] = reg[rt] >>> (reg[rs] & 0x1f); 
 				return;
-			case FN_SRAV: // shift word right arithmetic variable (shift amount in reg[rs], propogate sign).
+			case H_FN + FN_SRAV: // shift word right arithmetic variable (shift amount in reg[rs], propogate sign).
 				reg[rd] = reg[rt] >> (reg[rs] & 0x1f); 
 				return;
-			case FN_SLLV: // shift word left logical variable (low order 5 bits of RS)
+			case H_FN + FN_SLLV: // shift word left logical variable (low order 5 bits of RS)
 				reg[rd] = reg[rt] << (reg[rs] & 0x1f); 
 				return;
-			case FN_JR: // jump register (function call return if rs=31)
-				nextpc = reg[rs]; 
-				return;
-			case FN_JALR: // jump and link register
-				reg[rd] = nextpc;
-				nextpc = reg[rs]; 
-				return;
-			case FN_MFHI: // move from hi register
+			case H_FN + FN_MFHI: // move from hi register
 				reg[rd] = reg[reghi]; 
 				return;
-			case FN_MFLO: // move from lo register
+			case H_FN + FN_MFLO: // move from lo register
 				reg[rd] = reg[reglo];
 				return;
-			case FN_MULT: { // multiply 32 bit signed integers. 64 bit result.
+			case H_FN + FN_MULT: { // multiply 32 bit signed integers. 64 bit result.
 				long res = ((long) reg[rs]) * ((long) reg[rt]);
 				reg[reglo] = ((int) (res & 0xffffffffL));
 				reg[reghi] = ((int) ((res >>> 32) & 0xffffffffL));
 				return;
 			} 
-			case FN_MULTU: { // mul unsigned integers
+			case H_FN + FN_MULTU: { // mul unsigned integers
 				long res = (reg[rs] & 0xffffffffL) * (reg[rt] & 0xffffffffL);
 				reg[reglo] = (int) (res & 0xffffffffL);
 				reg[reghi] = (int) ((res >>> 32) & 0xffffffffL);
 				return;
 			} 
-			case FN_DIV: // divide 32 bit signed integers 
+			case H_FN + FN_DIV: // divide 32 bit signed integers 
 				// result is unpredictable for zero, no exceptions thrown
 				if (rt != 0) {
 					reg[reglo] = reg[rs] / reg[rt];
 					reg[reghi] = reg[rs] % reg[rt];
 				}
 				return;
-			case FN_DIVU: { // divide unsigned word
+			case H_FN + FN_DIVU: { // divide unsigned word
 				// unpredictable result and no exception for zero
 				if (reg[rt] != 0) {
 					// use long so a and b are unsigned
@@ -608,33 +741,36 @@ public final class Mips extends Machine {
 				}
 				return;
 			}
-			case FN_ADDU: // add unsigned word
+			case H_FN + FN_ADDU: // add unsigned word
 				reg[rd] = reg[rs] + reg[rt]; 
 				return;
-			case FN_SUBU: // subtract unsigned word
+			case H_FN + FN_SUBU: // subtract unsigned word
 				reg[rd] = reg[rs] - reg[rt]; 
 				return;
-			case FN_AND: // bitwise logical and
+			case H_FN + FN_AND: // bitwise logical and
 				reg[rd] = reg[rs] & reg[rt]; 
 				return;
-			case FN_OR: // bitwise logical or
+			case H_FN + FN_OR: // bitwise logical or
 				reg[rd] = reg[rs] | reg[rt]; 
 				return;
-			case FN_XOR: // exclusive or
+			case H_FN + FN_XOR: // exclusive or
 				reg[rd] = reg[rs] ^ reg[rt]; 
 				return;
-			case FN_NOR: // not or
+			case H_FN + FN_NOR: // not or
 				reg[rd] = ~ (reg[rs] | reg[rt]); 
 				return;
-			case FN_SLT: // set on less than (signed !!)
+			case H_FN + FN_SLT: // set on less than (signed !!)
 				reg[rd] = (reg[rs] < reg[rt]) ? 1 : 0; 
 				return;
-			case FN_SLTU: // set on less than unsigned TODO create a word mask constant
+			case H_FN + FN_SLTU: // set on less than unsigned TODO create a word mask constant
 				reg[rd] = ((reg[rs] & 0xffffffffL) < (reg[rt] & 0xffffffffL)) ? 1 : 0; 
 				return;
 		}
 
-		throw new RuntimeException("invalid fn 0x" + Integer.toHexString(fn));
+		if (h >= H_FN)
+			throw new RuntimeException("invalid fn 0x" + Integer.toHexString(h - H_FN));
+		// instruction not implemented
+		throw new RuntimeException(String.format("invalid op %02x", h));
 	}
 
 	/**
@@ -647,32 +783,23 @@ public final class Mips extends Machine {
 		// linux syscalls start at 4000... see linux/include/asm-mips/unistd.h
 		int call = reg[2] - 4000;
 
+		// arg positions are fixed on stack, see syscall6 somewhere in glibc
+		SyscallHandler h = SyscallTable.get(call);
+		if (h != null && h.args > 4)
+			e = mem.load_word(reg[29] + 16);
+		if (h != null && h.args > 5)
+			f = mem.load_word(reg[29] + 20);
+
 		if (opt.trace) {
 			if (opt.regprint && !opt.disasm)
 				opt.println(regs());
-			//String as = a > 0x400000 ? mem.getname(a) : Integer.toString(a);
-			//String bs = b > 0x400000 ? mem.getname(b) : Integer.toString(b);
-			//String cs = c > 0x400000 ? mem.getname(c) : Integer.toString(c);
-			//String ds = c > 0x400000 ? mem.getname(d) : Integer.toString(d);
-			//System.err.println(disasm(mem, reg, pc - 4, nextpc));
 			opt.println(backtrace());
-			//opt.println("syscall %d %s(%s, %s, %s, %s, ...)", call, Syscalls.sys_names[call].name, as, bs, cs, ds);
+			opt.println(SyscallTable.string(call, mem, a, b, c, d, e, f));
 			if (opt.interactive && !opt.disasm) {
 				Driver.step();
 			}
 		}
 
-		// minor hack until we have number of args in the disasm type
-		// arg positions are fixed on stack
-		// see syscall6 somewhere in glibc
-		switch (call) {
-			case Syscalls.SYS_MMAP:
-				f = mem.load_word(reg[29] + 20);
-			case Syscalls.SYS_LLSEEK:
-			case Syscalls.SYS_SETSOCKOPT:
-				e = mem.load_word(reg[29] + 16);
-		}
-
 		// actually do syscall
 		int res = syscall(call, a, b, c, d, e, f);
 
@@ -0,0 +1,590 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+import static cfern.cpu.mips.MipsIsn.*;
+import static cfern.cpu.mips.ClassFile.*;
+import cfern.Driver;
+
+/**
+ * Compiles hot blocks to Java bytecode. The straight line part of a block (up
+ * to but not including the first branch or syscall) becomes the run() method
+ * of a Compiled subclass. Guest registers are held in Java locals so HotSpot
+ * can allocate them to host registers, and they are written back to reg[]
+ * at the end and around any instruction that isn't compiled (these are
+ * interpreted by calling back the machine, e.g. FPU and divide, with pc set
+ * as the interpreter would have it).
+ *
+ * If a load or store throws (e.g. a segfault), an exception handler writes
+ * the registers back and sets pc to the faulting instruction before
+ * rethrowing, so the machine state is exact for a signal handler or dump.
+ *
+ * Each class is defined in its own class loader, so it can be unloaded when
+ * its block is dropped from the block cache.
+ */
+final class MipsCompiler {
+
+	/**
+	 * Number of executions of a block before it is compiled
+	 */
+	static final int threshold = 1000;
+
+	/**
+	 * Minimum number of compilable instructions to make compiling worthwhile
+	 */
+	private static final int minlen = 2;
+
+	/**
+	 * Registers (including hi and lo) held in locals, long temporary local and
+	 * total locals.
+	 */
+	private static final int numregs = 34, templ = 2 + numregs, maxlocals = templ + 2, maxstack = 8;
+
+	private static final String memory = "cfern/mem/Memory", compiled = "cfern/cpu/mips/Compiled";
+
+	/**
+	 * Machine that compiled code calls back
+	 */
+	private final Mips machine;
+
+	/**
+	 * Statistics
+	 */
+	private int compiledcount, failedcount;
+
+	MipsCompiler(Mips machine) {
+		this.machine = machine;
+	}
+
+	/**
+	 * Try to compile the given block, sets the code and code length of the block
+	 * if successful
+	 */
+	void compile(Block b) {
+		int[] isns = b.isns;
+		int len = 0, n = 0;
+		while (len < isns.length && !isbranch(isns[len]) && !issyscall(isns[len])) {
+			if (isns[len] != 0 && compilable(isns[len]))
+				n++;
+			len++;
+		}
+		if (n < minlen)
+			return;
+
+		try {
+			byte[] cls = generate(b.start, isns, len);
+			Class<?> c = new Loader().define(cls);
+			Compiled code = (Compiled) c.getConstructor().newInstance();
+			code.setMachine(machine);
+			b.codelen = len;
+			b.code = code;
+			compiledcount++;
+		} catch (Exception e) {
+			failedcount++;
+			Driver.opt().warn("MipsCompiler: could not compile %s: %s", b, e);
+		} catch (LinkageError e) {
+			// e.g. verify error
+			failedcount++;
+			Driver.opt().warn("MipsCompiler: could not load %s: %s", b, e);
+		}
+	}
+
+	/**
+	 * Local variable for register r (not 0)
+	 */
+	private static int local(int r) {
+		return 2 + r;
+	}
+
+	/**
+	 * Generate a class for the first len instructions
+	 */
+	private static byte[] generate(int start, int[] isns, int len) {
+		ClassFile cf = new ClassFile("cfern/cpu/mips/Block_" + Integer.toHexString(start), compiled);
+
+		// registers that need to be in locals
+		boolean[] used = new boolean[numregs];
+		for (int n = 0; n < len; n++) {
+			int isn = isns[n];
+			if (isn != 0 && compilable(isn))
+				uses(isn, used);
+		}
+		used[0] = false;
+		boolean[] dirty = new boolean[numregs];
+		// registers written by any compiled instruction
+		boolean[] written = new boolean[numregs];
+		// code offsets of each compiled memory access and its pc
+		int[] faults = new int[len * 3];
+		int numfaults = 0;
+
+		load(cf, used);
+		for (int n = 0; n < len; n++) {
+			int isn = isns[n];
+			if (isn == 0)
+				continue;
+			// the value of pc in the interpreter
+			int pc = start + (n * 4) + 4;
+			if (compilable(isn)) {
+				int from = cf.pos();
+				emit(cf, isn, dirty);
+				if (accesses(isn)) {
+					faults[numfaults++] = from;
+					faults[numfaults++] = cf.pos();
+					faults[numfaults++] = pc;
+				}
+				for (int r = 1; r < numregs; r++)
+					written[r] |= dirty[r];
+			} else {
+				// interpret instruction, which may read or write any register
+				flush(cf, dirty);
+				cf.aload(0);
+				cf.iconst(isn);
+				cf.iconst(pc);
+				cf.invoke(INVOKEVIRTUAL, compiled, "call", "(II)V");
+				load(cf, used);
+			}
+		}
+		flush(cf, dirty);
+		cf.op(RETURN);
+
+		if (numfaults > 0) {
+			// write back every register that may have changed (the locals
+			// always hold the current value) and rethrow
+			int rethrow = cf.pos();
+			flush(cf, written);
+			cf.op(ATHROW);
+			// set pc for each access, the exception stays on the stack
+			for (int n = 0; n < numfaults; n += 3) {
+				cf.handler(faults[n], faults[n + 1], cf.pos());
+				cf.aload(0);
+				cf.iconst(faults[n + 2]);
+				cf.invoke(INVOKEVIRTUAL, compiled, "setpc", "(I)V");
+				cf.jump(rethrow);
+			}
+		}
+		cf.method("run", "([I" + "L" + memory + ";)V", maxstack, maxlocals);
+		return cf.toByteArray();
+	}
+
+	/**
+	 * Load used registers from reg[] into locals
+	 */
+	private static void load(ClassFile cf, boolean[] used) {
+		for (int r = 1; r < numregs; r++) {
+			if (used[r]) {
+				cf.aload(1);
+				cf.iconst(r);
+				cf.op(IALOAD);
+				cf.istore(local(r));
+			}
+		}
+	}
+
+	/**
+	 * Store modified registers from locals into reg[]
+	 */
+	private static void flush(ClassFile cf, boolean[] dirty) {
+		for (int r = 1; r < numregs; r++) {
+			if (dirty[r]) {
+				cf.aload(1);
+				cf.iconst(r);
+				cf.iload(local(r));
+				cf.op(IASTORE);
+				dirty[r] = false;
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the instruction can be compiled, otherwise it is
+	 * interpreted (it should not be a branch or syscall).
+	 */
+	private static boolean compilable(int isn) {
+		switch (isn >>> 26) {
+			case OP_SPECIAL:
+				switch (isn & 0x3f) {
+					case FN_SLL:
+					case FN_SRL:
+					case FN_SRA:
+					case FN_SLLV:
+					case FN_SRLV:
+					case FN_SRAV:
+					case FN_MFHI:
+					case FN_MFLO:
+					case FN_MULT:
+					case FN_MULTU:
+					case FN_ADDU:
+					case FN_SUBU:
+					case FN_AND:
+					case FN_OR:
+					case FN_XOR:
+					case FN_NOR:
+					case FN_SLT:
+					case FN_SLTU:
+						return true;
+					default:
+						return false;
+				}
+			case OP_ADDIU:
+			case OP_ANDI:
+			case OP_XORI:
+			case OP_ORI:
+			case OP_SLTI:
+			case OP_SLTIU:
+			case OP_LUI:
+			case OP_LW:
+			case OP_LB:
+			case OP_LBU:
+			case OP_LH:
+			case OP_LHU:
+			case OP_SW:
+			case OP_SH:
+			case OP_SB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Returns true if a compilable instruction is a load or store (and so may
+	 * throw)
+	 */
+	private static boolean accesses(int isn) {
+		switch (isn >>> 26) {
+			case OP_LW:
+			case OP_LB:
+			case OP_LBU:
+			case OP_LH:
+			case OP_LHU:
+			case OP_SW:
+			case OP_SH:
+			case OP_SB:
+				return true;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Mark the registers a compilable instruction uses
+	 */
+	private static void uses(int isn, boolean[] used) {
+		used[(isn >>> 21) & 0x1f] = true;
+		used[(isn >>> 16) & 0x1f] = true;
+		if ((isn >>> 26) == OP_SPECIAL) {
+			used[(isn >>> 11) & 0x1f] = true;
+			switch (isn & 0x3f) {
+				case FN_MFHI:
+				case FN_MFLO:
+				case FN_MULT:
+				case FN_MULTU:
+					used[32] = true;
+					used[33] = true;
+			}
+		}
+	}
+
+	/**
+	 * Push register r
+	 */
+	private static void ld(ClassFile cf, int r) {
+		if (r == 0)
+			cf.iconst(0);
+		else
+			cf.iload(local(r));
+	}
+
+	/**
+	 * Pop into register r (writes to register 0 are discarded)
+	 */
+	private static void st(ClassFile cf, int r, boolean[] dirty) {
+		if (r == 0) {
+			cf.op(POP);
+		} else {
+			cf.istore(local(r));
+			dirty[r] = true;
+		}
+	}
+
+	/**
+	 * Push mem and the effective address reg[rs] + simm
+	 */
+	private static void addr(ClassFile cf, int rs, short simm) {
+		cf.aload(2);
+		ld(cf, rs);
+		if (simm != 0) {
+			cf.iconst(simm);
+			cf.op(IADD);
+		}
+	}
+
+	/**
+	 * Given two longs on the stack, push 1 if the first is less than the second
+	 * (i.e. the difference is negative) or 0 otherwise. Avoids branches.
+	 */
+	private static void lessthan(ClassFile cf) {
+		cf.op(LSUB);
+		cf.iconst(63);
+		cf.op(LUSHR);
+		cf.op(L2I);
+	}
+
+	/**
+	 * Push register as unsigned long
+	 */
+	private static void ldunsigned(ClassFile cf, int r) {
+		ld(cf, r);
+		cf.op(I2L);
+		cf.lconst(0xffffffffL);
+		cf.op(LAND);
+	}
+
+	/**
+	 * Emit code for a compilable instruction, with the same semantics as the
+	 * interpreter (Mips.exec)
+	 */
+	private static void emit(ClassFile cf, int isn, boolean[] dirty) {
+		int rt = (isn >>> 16) & 0x1f;
+		int rs = (isn >>> 21) & 0x1f;
+		short simm = (short) isn;
+
+		switch (isn >>> 26) {
+			case OP_SPECIAL:
+				emitfn(cf, isn, dirty);
+				return;
+			case OP_ADDIU:
+				ld(cf, rs);
+				cf.iconst(simm);
+				cf.op(IADD);
+				st(cf, rt, dirty);
+				return;
+			case OP_ANDI:
+				ld(cf, rs);
+				cf.iconst(simm & 0xffff);
+				cf.op(IAND);
+				st(cf, rt, dirty);
+				return;
+			case OP_XORI:
+				ld(cf, rs);
+				cf.iconst(simm & 0xffff);
+				cf.op(IXOR);
+				st(cf, rt, dirty);
+				return;
+			case OP_ORI:
+				ld(cf, rs);
+				cf.iconst(simm & 0xffff);
+				cf.op(IOR);
+				st(cf, rt, dirty);
+				return;
+			case OP_SLTI:
+				ld(cf, rs);
+				cf.op(I2L);
+				cf.lconst(simm);
+				lessthan(cf);
+				st(cf, rt, dirty);
+				return;
+			case OP_SLTIU:
+				ldunsigned(cf, rs);
+				cf.lconst(simm & 0xffffffffL);
+				lessthan(cf);
+				st(cf, rt, dirty);
+				return;
+			case OP_LUI:
+				cf.iconst(simm << 16);
+				st(cf, rt, dirty);
+				return;
+			case OP_LW:
+				addr(cf, rs, simm);
+				cf.invoke(INVOKEVIRTUAL, memory, "load_word", "(I)I");
+				st(cf, rt, dirty);
+				return;
+			case OP_LB:
+				addr(cf, rs, simm);
+				cf.invoke(INVOKEVIRTUAL, memory, "load_byte", "(I)B");
+				st(cf, rt, dirty);
+				return;
+			case OP_LBU:
+				addr(cf, rs, simm);
+				cf.invoke(INVOKEVIRTUAL, memory, "load_byte", "(I)B");
+				cf.iconst(0xff);
+				cf.op(IAND);
+				st(cf, rt, dirty);
+				return;
+			case OP_LH:
+				addr(cf, rs, simm);
+				cf.invoke(INVOKEVIRTUAL, memory, "load_half", "(I)S");
+				st(cf, rt, dirty);
+				return;
+			case OP_LHU:
+				addr(cf, rs, simm);
+				cf.invoke(INVOKEVIRTUAL, memory, "load_half", "(I)S");
+				cf.iconst(0xffff);
+				cf.op(IAND);
+				st(cf, rt, dirty);
+				return;
+			case OP_SW:
+				addr(cf, rs, simm);
+				ld(cf, rt);
+				cf.invoke(INVOKEVIRTUAL, memory, "store_word", "(II)V");
+				return;
+			case OP_SH:
+				addr(cf, rs, simm);
+				ld(cf, rt);
+				cf.op(I2S);
+				cf.invoke(INVOKEVIRTUAL, memory, "store_half", "(IS)V");
+				return;
+			case OP_SB:
+				addr(cf, rs, simm);
+				ld(cf, rt);
+				cf.op(I2B);
+				cf.invoke(INVOKEVIRTUAL, memory, "store_byte", "(IB)V");
+				return;
+		}
+		throw new RuntimeException(String.format("cannot compile op %02x", isn >>> 26));
+	}
+
+	/**
+	 * Emit code for a register function
+	 */
+	private static void emitfn(ClassFile cf, int isn, boolean[] dirty) {
+		int rd = (isn >>> 11) & 0x1f;
+		int rt = (isn >>> 16) & 0x1f;
+		int rs = (isn >>> 21) & 0x1f;
+		int sa = (isn >>> 6) & 0x1f;
+
+		switch (isn & 0x3f) {
+			case FN_SLL:
+				ld(cf, rt);
+				cf.iconst(sa);
+				cf.op(ISHL);
+				break;
+			case FN_SRL:
+				ld(cf, rt);
+				cf.iconst(sa);
+				cf.op(IUSHR);
+				break;
+			case FN_SRA:
+				ld(cf, rt);
+				cf.iconst(sa);
+				cf.op(ISHR);
+				break;
+			case FN_SLLV:
+				// jvm shifts use the low 5 bits like mips
+				ld(cf, rt);
+				ld(cf, rs);
+				cf.op(ISHL);
+				break;
+			case FN_SRLV:
+				ld(cf, rt);
+				ld(cf, rs);
+				cf.op(IUSHR);
+				break;
+			case FN_SRAV:
+				ld(cf, rt);
+				ld(cf, rs);
+				cf.op(ISHR);
+				break;
+			case FN_MFHI:
+				ld(cf, 32);
+				break;
+			case FN_MFLO:
+				ld(cf, 33);
+				break;
+			case FN_MULT:
+				ld(cf, rs);
+				cf.op(I2L);
+				ld(cf, rt);
+				cf.op(I2L);
+				emitmult(cf, dirty);
+				return;
+			case FN_MULTU:
+				ldunsigned(cf, rs);
+				ldunsigned(cf, rt);
+				emitmult(cf, dirty);
+				return;
+			case FN_ADDU:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(IADD);
+				break;
+			case FN_SUBU:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(ISUB);
+				break;
+			case FN_AND:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(IAND);
+				break;
+			case FN_OR:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(IOR);
+				break;
+			case FN_XOR:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(IXOR);
+				break;
+			case FN_NOR:
+				ld(cf, rs);
+				ld(cf, rt);
+				cf.op(IOR);
+				cf.iconst(-1);
+				cf.op(IXOR);
+				break;
+			case FN_SLT:
+				ld(cf, rs);
+				cf.op(I2L);
+				ld(cf, rt);
+				cf.op(I2L);
+				lessthan(cf);
+				break;
+			case FN_SLTU:
+				ldunsigned(cf, rs);
+				ldunsigned(cf, rt);
+				lessthan(cf);
+				break;
+			default:
+				throw new RuntimeException("cannot compile fn 0x" + Integer.toHexString(isn & 0x3f));
+		}
+		st(cf, rd, dirty);
+	}
+
+	/**
+	 * Multiply the two longs on the stack into hi and lo
+	 */
+	private static void emitmult(ClassFile cf, boolean[] dirty) {
+		cf.op(LMUL);
+		cf.lstore(templ);
+		cf.lload(templ);
+		cf.op(L2I);
+		st(cf, 33, dirty);
+		cf.lload(templ);
+		cf.iconst(32);
+		cf.op(LUSHR);
+		cf.op(L2I);
+		st(cf, 32, dirty);
+	}
+
+	public String toString() {
+		return String.format("compiled=%d failed=%d", compiledcount, failedcount);
+	}
+
+	/**
+	 * Class loader for a single compiled block
+	 */
+	private static final class Loader extends ClassLoader {
+		Loader() {
+			super(Compiled.class.getClassLoader());
+		}
+		Class<?> define(byte[] b) {
+			return defineClass(null, b, 0, b.length);
+		}
+	}
+
+} // end of class MipsCompiler
@@ -459,6 +459,99 @@ public final class MipsIsn {
 		return addr.concat(args);
 	}
 
+	/**
+	 * Returns true if the instruction is a jump or branch (and so is followed by
+	 * a delay slot).
+	 */
+	static boolean isbranch (int isn) {
+		switch (isn >>> 26) {
+			case OP_SPECIAL: {
+				int fn = isn & 0x3f;
+				return isn != 0 && (fn == FN_JR || fn == FN_JALR);
+			}
+			case OP_REGIMM:
+			case OP_J:
+			case OP_JAL:
+			case OP_BEQ:
+			case OP_BNE:
+			case OP_BLEZ:
+			case OP_BGTZ:
+				return true;
+			case OP_COP1:
+				return ((isn >>> 21) & 0x1f) == RS_BC;
+			default:
+				return false;
+		}
+	}
+
+	/**
+	 * Handlers of register instructions are H_FN plus the function, see
+	 * handler()
+	 */
+	static final int H_FN = 0x40;
+
+	/**
+	 * Get the handler of an instruction for Mips.exec: 0 for a nop, H_FN plus
+	 * the function for a register instruction, otherwise the opcode.
+	 */
+	static int handler (int isn) {
+		if (isn == 0)
+			return 0;
+		int op = isn >>> 26;
+		return op == OP_SPECIAL ? H_FN + (isn & 0x3f) : op;
+	}
+
+	/**
+	 * Get the immediate operand of an instruction for Mips.exec: the whole
+	 * instruction for branches, coprocessor and other register instructions
+	 * (which decode it themselves), the shift amount for constant shifts, the
+	 * zero extended immediate for logical operations, the shifted immediate
+	 * for lui, otherwise the sign extended immediate.
+	 */
+	static int operand (int isn) {
+		if (isbranch(isn))
+			return isn;
+		switch (isn >>> 26) {
+			case OP_SPECIAL: {
+				int fn = isn & 0x3f;
+				return fn == FN_SLL || fn == FN_SRL || fn == FN_SRA ? (isn >>> 6) & 0x1f : isn;
+			}
+			case OP_COP1:
+				return isn;
+			case OP_ANDI:
+			case OP_ORI:
+			case OP_XORI:
+				return isn & 0xffff;
+			case OP_LUI:
+				return isn << 16;
+			default:
+				return (short) isn;
+		}
+	}
+
+	/**
+	 * Returns true if the instruction is a function call (jal or jalr)
+	 */
+	static boolean iscall (int isn) {
+		int op = isn >>> 26;
+		return op == OP_JAL || (op == OP_SPECIAL && (isn & 0x3f) == FN_JALR);
+	}
+
+	/**
+	 * Returns true if the instruction is a function return (jr $ra)
+	 */
+	static boolean isreturn (int isn) {
+		return (isn >>> 26) == OP_SPECIAL && (isn & 0x3f) == FN_JR && ((isn >>> 21) & 0x1f) == 31;
+	}
+
+	/**
+	 * Returns true if the instruction is a syscall (which may change pc, e.g. by
+	 * invoking a signal handler or execve).
+	 */
+	static boolean issyscall (int isn) {
+		return (isn >>> 26) == OP_SPECIAL && (isn & 0x3f) == FN_SYSCALL;
+	}
+
 	/**
 	 * Get the offset of the return address slot from the stack pointer for the
 	 * given function. E.g. returns 32 for "sw [sp +32] = ra". Returns -1 if there
@@ -0,0 +1,42 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+
+/**
+ * A superblock: a sequence of blocks predicted to execute one after another,
+ * following the usual direction of each branch and through calls and
+ * returns. If the actual successor of a block is not the next block of the
+ * trace, execution leaves the trace (a side exit).
+ */
+final class Trace {
+
+	/**
+	 * The blocks, the first is the block this trace is attached to
+	 */
+	final Block[] blocks;
+
+	Trace(Block[] blocks) {
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Returns true if any block of this trace is in the given region
+	 */
+	boolean within(int addr, int len) {
+		for (int n = 0; n < blocks.length; n++)
+			if (blocks[n].within(addr, len))
+				return true;
+		return false;
+	}
+
+	public String toString() {
+		StringBuilder sb = new StringBuilder("Trace[");
+		for (int n = 0; n < blocks.length; n++)
+			sb.append(n == 0 ? "" : " ").append(Integer.toHexString(blocks[n].start));
+		return sb.append("]").toString();
+	}
+
+} // end of class Trace
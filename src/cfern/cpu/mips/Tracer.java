@@ -0,0 +1,102 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.cpu.mips;
+import static cfern.cpu.mips.MipsIsn.*;
+
+import java.util.ArrayList;
+
+/**
+ * Builds traces (superblocks) from hot blocks and keeps trace coverage
+ * statistics. A trace follows the last observed successor of each block if
+ * it has been stable, and follows calls into functions and back out of them
+ * by pairing jal/jalr with the matching jr $ra. A trace ends at a syscall, at
+ * an unpredictable branch, at a block already in the trace (e.g. a loop back
+ * to the start) or at the maximum length.
+ */
+final class Tracer {
+
+	/**
+	 * Number of executions of a block before a trace is built from it
+	 */
+	static final int threshold = 256;
+
+	/**
+	 * Number of times in a row a branch must go the same way to be followed
+	 */
+	private static final int minstable = 16;
+
+	/**
+	 * Maximum blocks in a trace and calls followed
+	 */
+	private static final int maxblocks = 16, maxdepth = 4;
+
+	/**
+	 * Where to find successor blocks
+	 */
+	private final BlockCache blocks;
+
+	/**
+	 * Traces built, entered and left early
+	 */
+	int built, entered, exits;
+
+	/**
+	 * Instructions executed in traces and in plain blocks
+	 */
+	long traceisns, blockisns;
+
+	Tracer(BlockCache blocks) {
+		this.blocks = blocks;
+	}
+
+	/**
+	 * Build a trace starting with the given block and attach it to the block
+	 */
+	void build(Block head) {
+		ArrayList<Block> list = new ArrayList<Block>(maxblocks);
+		// predicted return addresses
+		int[] ras = new int[maxdepth];
+		int depth = 0;
+
+		Block b = head;
+		for (;;) {
+			list.add(b);
+			if (list.size() == maxblocks || b.syscall)
+				break;
+
+			int next;
+			if (b.branch < 0) {
+				next = b.end;
+			} else {
+				int isn = b.isns[b.branch];
+				if (isreturn(isn) && depth > 0) {
+					next = ras[--depth];
+				} else if (b.stable >= minstable) {
+					next = b.succ;
+					if (iscall(isn) && depth < maxdepth)
+						// return to the instruction after the delay slot
+						ras[depth++] = b.start + (b.branch * 4) + 8;
+				} else {
+					break;
+				}
+			}
+
+			b = blocks.peek(next);
+			if (b == null || list.contains(b))
+				break;
+		}
+
+		blocks.traced(head, new Trace(list.toArray(new Block[list.size()])));
+		built++;
+	}
+
+	public String toString() {
+		long total = traceisns + blockisns;
+		return String.format("traces built=%d entered=%d side exits=%d coverage=%.1f%%",
+				built, entered, exits, total == 0 ? 0.0 : (traceisns * 100.0) / total);
+	}
+
+} // end of class Tracer
@@ -48,6 +48,8 @@ final class Elf32_Ehdr {
   final short e_shstrndx;
   /** these appear at the start of every elf file */
   static final int ELF_MAGIC = 0x7f454c46;
+  /** bytes in the header */
+  static final int size = 52;
   
   /** load elf header from file */
   Elf32_Ehdr(MyDataInput f) throws IOException {
@@ -28,6 +28,8 @@ final class Elf32_Phdr {
    * register usage for shared object, mips psabi page 86
    */
   static final int PT_MIPS_REGINFO = 0x70000000;
+  /** p_flags bits */
+  static final int PF_X = 1, PF_W = 2, PF_R = 4;
   
   /** Load if equal to PT_LOAD */
   final int p_type;
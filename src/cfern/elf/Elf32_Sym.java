@@ -52,7 +52,7 @@ class Elf32_Sym implements Comparable<Elf32_Sym> {
     st_info = f.read(); 
     st_other = f.read();
     st_shndx = f.readshort(); 
-    name = ElfLoader.load_string(strtab, st_name);
+    name = ElfImage.load_string(strtab, st_name);
     secname = st_shndx == -15 ? "abs" : shdrs[st_shndx].name;
   }
   
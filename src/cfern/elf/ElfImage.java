@@ -0,0 +1,222 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.elf;
+import java.io.*;
+import java.util.*;
+
+import cfern.Driver;
+import cfern.fs.*;
+import cfern.sys.str.Stat;
+
+/**
+ * The parsed headers and symbol table of an ELF file, which do not change
+ * once loaded. Images are cached by path, modification time and size, so
+ * repeated execs of the same file do not parse it again.
+ */
+final class ElfImage {
+  
+  /**
+   * Maximum number of cached images
+   */
+  private static final int maximages = 32;
+  
+  /**
+   * Cached images by path, modification time and size, in access order
+   */
+  private static final Map<String, ElfImage> images = new LinkedHashMap<String, ElfImage>(maximages, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, ElfImage> e) {
+      return size() > maximages;
+    }
+  };
+  
+  /**
+   * Count of images found and parsed
+   */
+  private static long hits, misses;
+  
+  /**
+   * The ELF header
+   */
+  final Elf32_Ehdr ehdr;
+  
+  /**
+   * The section headers
+   */
+  final Elf32_Shdr[] shdrs;
+  
+  /**
+   * The program headers
+   */
+  final Elf32_Phdr[] phdrs;
+  
+  /**
+   * Relocation entries (not actually needed)
+   */
+  final Elf32_Rela[] rela;
+  
+  /**
+   * The symbol array in a convienient object
+   */
+  final SymbolTable st;
+  
+  /**
+   * General pointer from the strange RegInfo section.
+   */
+  final int gp;
+  
+  /**
+   * Get the image of the file at path (may be null), from the cache if
+   * it has not changed
+   */
+  static ElfImage get(MyDataInput file, String path) throws IOException {
+    FileDesc fd = path != null ? file.getfile() : null;
+    Stat st = fd != null ? fd.fstat() : null;
+    if (st == null)
+      return new ElfImage(file);
+    
+    String key = path + ":" + st.mtime + ":" + st.size;
+    synchronized (images) {
+      ElfImage image = images.get(key);
+      if (image != null) {
+        hits++;
+        Driver.opt().elflog("ElfImage: cached %s, %s", key, string());
+        return image;
+      }
+      misses++;
+    }
+    
+    ElfImage image = new ElfImage(file);
+    synchronized (images) {
+      images.put(key, image);
+    }
+    return image;
+  }
+  
+  /**
+   * Get a string describing the cache
+   */
+  static String string() {
+    synchronized (images) {
+      return String.format("elf images=%d hits=%d misses=%d", images.size(), hits, misses);
+    }
+  }
+  
+  /**
+   * Load a string from a string table byte array
+   */
+  static String load_string(byte[] strtab, int index) {
+    int len = 0;
+    while (strtab[index + len] != 0)
+      len++;
+    return new String(strtab, index, len);
+  }
+  
+  /**
+   * Load the elf header, section table, program table, symbol table (not program
+   * data). Each table is read from the file in one go and parsed from a
+   * BufferDataInput.
+   */
+  private ElfImage(MyDataInput file) throws IOException {
+    // get elf header
+    ehdr = new Elf32_Ehdr(BufferDataInput.read(file, 0, Elf32_Ehdr.size));
+    
+    // load section headers
+    shdrs = new Elf32_Shdr[ehdr.e_shnum];
+    MyDataInput in = BufferDataInput.read(file, ehdr.e_shoff, ehdr.e_shnum * ehdr.e_shentsize);
+    for (int n = 0; n < ehdr.e_shnum; n++) {
+      shdrs[n] = new Elf32_Shdr(in);
+    }
+    
+    // load section header string table
+    if (ehdr.e_shstrndx != 0) {
+      Elf32_Shdr sec = shdrs[ehdr.e_shstrndx];
+      Driver.opt().elflog("loading section header string table at %x (%d)", sec.sh_offset, sec.sh_size);
+      byte[] strtab = BufferDataInput.bytes(file, sec.sh_offset, sec.sh_size);
+      for (int n = 0; n < shdrs.length; n++) {
+        shdrs[n].name = load_string(strtab, shdrs[n].sh_name);
+      }
+    }
+    
+    // load RegInfo (the value of register 28)
+    // it's in the mips psabi book
+    int gp = 0;
+    for (int n = 0; n < ehdr.e_shnum; n++) {
+      if (shdrs[n].sh_type == Elf32_Shdr.SHT_MIPS_REGINFO) {
+        file.seekset(shdrs[n].sh_offset + 20);
+        gp = file.readint();
+        break;
+      }
+    }
+    
+    // load program headers
+    phdrs = new Elf32_Phdr[ehdr.e_phnum];
+    in = BufferDataInput.read(file, ehdr.e_phoff, ehdr.e_phnum * ehdr.e_phentsize);
+    for (int n = 0; n < ehdr.e_phnum; n++) {
+      phdrs[n] = new Elf32_Phdr(in);
+    }
+    
+    // find interp prog header
+    for (int n = 0; n < ehdr.e_phnum; n++) {
+      Elf32_Phdr p = phdrs[n];
+      int type = p.p_type;
+      if (type == Elf32_Phdr.PT_INTERP) {
+        // sub 1 for terminating null
+        byte[] buf = new byte[p.p_memsz - 1];
+        file.seekset(p.p_offset);
+        file.read(buf, 0, buf.length);
+        String name = new String(buf);
+        Driver.opt().elflog("ElfImage: interpreter is " + name);
+        // actually do something with interpreter...
+        throw new RuntimeException("can't do dynamic executables");
+      }
+    }
+    
+    // load symbol table
+    SymbolTable st = null;
+    Elf32_Rela[] rela = null;
+    for (int n = 0; n < shdrs.length; n++) {
+      // find the symbol table section
+      Elf32_Shdr s = shdrs[n];
+      boolean addend = false;
+      
+      switch (s.sh_type) {
+        case Elf32_Shdr.SHT_SYMTAB:
+          // load string table
+          Elf32_Shdr stsec = shdrs[s.sh_link];
+          Driver.opt().elflog("ElfImage: found symbol table %s string table %s", s.name, stsec.name);
+          byte[] strtab = BufferDataInput.bytes(file, stsec.sh_offset, stsec.sh_size);
+          // now load symbol table
+          st = new SymbolTable(BufferDataInput.read(file, s.sh_offset, s.sh_size), strtab, shdrs, n);
+          break;
+          
+        case Elf32_Shdr.SHT_RELA:
+          addend = true;
+        case Elf32_Shdr.SHT_REL:
+          // load relocations, these are not actually needed though
+          int num = s.sh_size / s.sh_entsize;
+          Driver.opt().elflog("ElfImage: found relocations %s addend: %s num: %d", s.name, addend, num);
+          rela = new Elf32_Rela[num];
+          in = BufferDataInput.read(file, s.sh_offset, s.sh_size);
+          for (int r = 0; r < num; r++)
+            rela[r] = new Elf32_Rela(in, addend);
+          break;
+      }
+      
+    }
+    
+    if (st == null) {
+      // there may not be a symbol table, create an empty one
+      Driver.opt().elflog("ElfImage: no symbol table");
+      st = new SymbolTable();
+    }
+    if (rela == null)
+      rela = new Elf32_Rela[0];
+    this.gp = gp;
+    this.st = st;
+    this.rela = rela;
+  }
+  
+} // end of class ElfImage
@@ -12,12 +12,8 @@ import cfern.mem.*;
 
 /**
  * Represents an ELF file, can load all its sections into a memory image. Has
- * useful toString() and main() also (similar to GNU Objdump).
- * 
- * TODO an elf cache, both headers and data by taking a copy of the Memory. files
- * can be uniquely identified by dev+inode
- * 
- * TODO seperate ElfLoader and ELF, make SymbolTable immutable again
+ * useful toString() and main() also (similar to GNU Objdump). The parsed
+ * headers come from an ElfImage, which may be shared with other loaders.
  */
 public final class ElfLoader {
   
@@ -38,32 +34,33 @@ public final class ElfLoader {
   /**
    * The ELF header
    */
-  private Elf32_Ehdr ehdr;
+  private final Elf32_Ehdr ehdr;
   
   /**
    * The section headers
    */
-  private Elf32_Shdr[] shdrs;
+  private final Elf32_Shdr[] shdrs;
   
   /**
    * The program headers
    */
-  private Elf32_Phdr[] phdrs;
+  private final Elf32_Phdr[] phdrs;
   
   /**
    * Relocation entries (not actually needed)
    */
-  private Elf32_Rela[] rela;
+  private final Elf32_Rela[] rela;
   
   /**
-   * The symbol array in a convienient object
+   * The symbol array in a convienient object, relocated to the load address
+   * once loaded
    */
   private SymbolTable st;
   
   /**
    * General pointer from the strange RegInfo section.
    */
-  private int gp;
+  private final int gp;
   
   /**
    * The load address of the first program header. Non zero if loading ld.so.
@@ -74,135 +71,35 @@ public final class ElfLoader {
    * Load an ELF file from given MyDataInput.
    */
   public static ElfLoader loadelf(MyDataInput in) throws IOException {
+    return loadelf(in, null);
+  }
+  
+  /**
+   * Load an ELF file from given MyDataInput opened from path, reusing the
+   * parsed headers of the file if it has not changed since last loaded.
+   */
+  public static ElfLoader loadelf(MyDataInput in, String path) throws IOException {
     in.seekset(0);
     int magic = in.readint();
     if (magic == Elf32_Ehdr.ELF_MAGIC) {
       in.seekset(0);
-      return new ElfLoader(in);
+      return new ElfLoader(in, ElfImage.get(in, path));
     }
     in.close();
     throw new RuntimeException("Not an ELF file");
   }
   
   /**
-   * Load an elf file and all its sections.
+   * Create a loader for an elf file and its sections.
    */
-  private ElfLoader(MyDataInput file) throws IOException {
+  private ElfLoader(MyDataInput file, ElfImage image) {
     this.file = file;
-    load_sections();
-  }
-  
-  /**
-   * Load a string from a string table byte array
-   */
-  static String load_string(byte[] strtab, int index) {
-    int len = 0;
-    while (strtab[index + len] != 0)
-      len++;
-    return new String(strtab, index, len);
-  }
-  
-  /**
-   * Load the elf header, section table, program table, symbol table (not program
-   * data)
-   */
-  private void load_sections() throws IOException {
-    // get elf header
-    ehdr = new Elf32_Ehdr(file);
-    
-    // load section headers
-    shdrs = new Elf32_Shdr[ehdr.e_shnum];
-    file.seekset(ehdr.e_shoff);
-    for (int n = 0; n < ehdr.e_shnum; n++) {
-      shdrs[n] = new Elf32_Shdr(file);
-    }
-    
-    // load section header string table
-    if (ehdr.e_shstrndx != 0) {
-      Elf32_Shdr sec = shdrs[ehdr.e_shstrndx];
-      Driver.opt().elflog("loading section header string table at %x (%d)", sec.sh_offset, sec.sh_size);
-      byte[] strtab = new byte[sec.sh_size];
-      file.seekset(sec.sh_offset);
-      file.read(strtab, 0, strtab.length);
-      for (int n = 0; n < shdrs.length; n++) {
-        shdrs[n].name = load_string(strtab, shdrs[n].sh_name);
-      }
-    }
-    
-    // load RegInfo (the value of register 28)
-    // it's in the mips psabi book
-    for (int n = 0; n < ehdr.e_shnum; n++) {
-      if (shdrs[n].sh_type == Elf32_Shdr.SHT_MIPS_REGINFO) {
-        file.seekset(shdrs[n].sh_offset + 20);
-        gp = file.readint();
-        break;
-      }
-    }
-    
-    // load program headers
-    phdrs = new Elf32_Phdr[ehdr.e_phnum];
-    file.seekset(ehdr.e_phoff);
-    for (int n = 0; n < ehdr.e_phnum; n++) {
-      phdrs[n] = new Elf32_Phdr(file);
-    }
-    
-    // find interp prog header
-    for (int n = 0; n < ehdr.e_phnum; n++) {
-      Elf32_Phdr p = phdrs[n];
-      int type = p.p_type;
-      if (type == Elf32_Phdr.PT_INTERP) {
-        // sub 1 for terminating null
-        byte[] buf = new byte[p.p_memsz - 1];
-        file.seekset(p.p_offset);
-        file.read(buf, 0, buf.length);
-        String name = new String(buf);
-        Driver.opt().elflog("ElfLoader: interpreter is " + name);
-        // actually do something with interpreter...
-        throw new RuntimeException("can't do dynamic executables");
-      }
-    }
-    
-    // load symbol table
-    for (int n = 0; n < shdrs.length; n++) {
-      // find the symbol table section
-      Elf32_Shdr s = shdrs[n];
-      boolean addend = false;
-      
-      switch (s.sh_type) {
-        case Elf32_Shdr.SHT_SYMTAB:
-          // load string table
-          Elf32_Shdr stsec = shdrs[s.sh_link];
-          Driver.opt().elflog("ElfLoader: found symbol table %s string table %s", s.name, stsec.name);
-          byte[] strtab = new byte[stsec.sh_size];
-          file.seekset(stsec.sh_offset);
-          file.read(strtab, 0, strtab.length);
-          // now load symbol table
-          file.seekset(s.sh_offset);
-          st = new SymbolTable(file, strtab, shdrs, n);
-          break;
-          
-        case Elf32_Shdr.SHT_RELA:
-          addend = true;
-        case Elf32_Shdr.SHT_REL:
-          // load relocations, these are not actually needed though
-          int num = s.sh_size / s.sh_entsize;
-          Driver.opt().elflog("ElfLoader: found relocations %s addend: %s num: %d", s.name, addend, num);
-          rela = new Elf32_Rela[num];
-          file.seekset(s.sh_offset);
-          for (int r = 0; r < num; r++)
-            rela[r] = new Elf32_Rela(file, addend);
-          break;
-      }
-      
-    }
-    
-    if (st == null) {
-      // there may not be a symbol table, create an empty one
-      Driver.opt().elflog("ElfLoader: no symbol table");
-      st = new SymbolTable();
-    }
-    if (rela == null)
-      rela = new Elf32_Rela[0];
+    ehdr = image.ehdr;
+    shdrs = image.shdrs;
+    phdrs = image.phdrs;
+    rela = image.rela;
+    st = image.st;
+    gp = image.gp;
   }
   
   /**
@@ -210,8 +107,6 @@ public final class ElfLoader {
    * TODO better handling of io exceptions, maybe return null
    */
   public Memory load (Memory mem) throws IOException {
-    mem.setsymbols(st);
-    
     // find the data section
     for (int n = 0; n < shdrs.length; n++) {
       Elf32_Shdr sec = shdrs[n];
@@ -244,13 +139,20 @@ public final class ElfLoader {
       int loadaddr = mem.alloc(loadoff + ph.p_vaddr, ph.p_memsz);
       if (relocate && loadoff == 0) {
         Driver.opt().elflog("ElfLoader: load offset is %x\n", loadaddr);
-        st.setloadoff(loadaddr);
+        st = st.relocate(loadaddr);
         this.loadaddr = loadaddr;
         loadoff = loadaddr;
       }
       
-      uf.seekset(ph.p_offset);
-      mem.read_from(uf, loadaddr, ph.p_filesz);
+      // text pages can be shared with other processes running the file
+      boolean text = (ph.p_flags & Elf32_Phdr.PF_W) == 0;
+      if (text || Driver.opt().lazyelf) {
+        // pages are loaded when touched
+        mem.map(uf, ph.p_offset, loadaddr, ph.p_filesz, text);
+      } else {
+        uf.seekset(ph.p_offset);
+        mem.read_from(uf, loadaddr, ph.p_filesz);
+      }
       
       // elf spec says zero the difference
       if (ph.p_memsz > ph.p_filesz)
@@ -261,6 +163,7 @@ public final class ElfLoader {
       bss = Math.max(bss, loadaddr + ph.p_filesz);
     }
     
+    mem.setsymbols(st);
     mem.setbrk(brk);
     
     //Driver.options().elflog("ElfLoader: brk=%x bss=%x\n", brk - loadaddr, bss - loadaddr);
@@ -68,6 +68,6 @@ class MyRAFDataInput implements MyDataInput {
    * Returns null
    */
   public FileDesc getfile() {
-    throw new UnsupportedOperationException();
+    return null;
   }
 }
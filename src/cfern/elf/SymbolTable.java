@@ -10,17 +10,30 @@ import cfern.fs.MyDataInput;
 
 /**
  * Loads an array of symbol table objects from an ELF file. Automatically
- * removes useless entries and sorts by address. If a program is relocated, then
- * use setloadaddr().
+ * removes useless entries and sorts by address. Immutable, so it can be shared
+ * by every image of the file. If a program is relocated, then use
+ * relocate() to get a table for the load offset.
  */
 public class SymbolTable {
 
 	private final Elf32_Sym[] syms;
 	private final Elf32_Sym[] badsyms;
+	/**
+	 * The address of each symbol in syms, for searching
+	 */
+	private final int[] addrs;
+	/**
+	 * Address of each symbol name, the first if more than one symbol has it
+	 */
+	private final Map<String, Integer> names;
+	/**
+	 * Digits for appendname
+	 */
+	private static final char[] hex = "0123456789abcdef".toCharArray();
 	/**
 	 * The offset this file was loaded at
 	 */
-	private int loadoff = 0;
+	private final int loadoff;
 
 	/**
 	 * Create a valid SymbolTable but with no symbols
@@ -28,6 +41,21 @@ public class SymbolTable {
 	public SymbolTable() {
 		syms = null;
 		badsyms = null;
+		addrs = null;
+		names = null;
+		loadoff = 0;
+	}
+
+	/**
+	 * Create a table with the same symbols as other but a different load
+	 * offset
+	 */
+	private SymbolTable(SymbolTable other, int loadoff) {
+		syms = other.syms;
+		badsyms = other.badsyms;
+		addrs = other.addrs;
+		names = other.names;
+		this.loadoff = loadoff;
 	}
 
 	/**
@@ -65,57 +93,38 @@ public class SymbolTable {
 
 		syms = symbol_list.toArray(new Elf32_Sym[symbol_list.size()]);
 		badsyms = dropped.toArray(new Elf32_Sym[dropped.size()]);
+		addrs = new int[syms.length];
+		names = new HashMap<String, Integer>(syms.length * 2);
+		for (n = 0; n < syms.length; n++) {
+			addrs[n] = syms[n].st_value;
+			if (!names.containsKey(syms[n].name))
+				names.put(syms[n].name, syms[n].st_value);
+		}
+		loadoff = 0;
 		//System.err.printf("# loaded %d symbols\n", symbol_list.size());
 	}
 
 	/**
-	 * find the symbol table index for an address. returns -1 on err. used as the
-	 * back end to getnamebyaddr and getobjbyaddr. may not work for addresses >
-	 * 2gb...
-	 * TODO should use Arrays.binarySearch(int[])
+	 * find the symbol table index for an address, the symbol with the biggest
+	 * address <= target. returns -1 on err, including addresses after the last
+	 * symbol. used as the back end to getname and getfunname. may not work for
+	 * addresses > 2gb...
 	 */
 	private int getnameindex(int target) {
-		if (syms == null)
+		if (syms == null || syms.length == 0)
 			return -1;
-
-		int first = syms[0].st_value;
-		int last = syms[syms.length-1].st_value;
-		if ((target < first) || (target > last))
+		if (target < addrs[0] || target > addrs[addrs.length - 1])
 			return -1;
-
-		// binary search of symbol array for biggest address <= target
-		// crashes if target < first
-
-		int top = syms.length - 1;
-		int mid = top / 2;
-		int bot = 0;
-
-		while (top > bot) {
-			int val = syms[mid].st_value;
-			if (val == target)
-				// if we get lucky. not actually necessary
-				return mid;
-			if (val > target) {
-				// we are too high. target is between bot and mid-1
-				top = mid - 1;
-			} else {
-				// too low. target is between mid+1 and top
-				bot = mid + 1;
-			}
-			mid = ((top - bot) / 2) + bot;
-		}
-
-		// the search either gives the right answer or the next one up. so check here.
-		if (syms[mid].st_value > target)
-			mid--;
-		return mid;
+		int i = Arrays.binarySearch(addrs, target);
+		// otherwise the insertion point is after the symbol
+		return i >= 0 ? i : -i - 2;
 	}
 
 	/**
-	 * Set the load address of this elf section
+	 * Get a table of these symbols for a file loaded at the given offset
 	 */
-	public void setloadoff(int loadoff) {
-		this.loadoff = loadoff;
+	public SymbolTable relocate(int loadoff) {
+		return loadoff == this.loadoff ? this : new SymbolTable(this, loadoff);
 	}
 
 	/**
@@ -123,23 +132,44 @@ public class SymbolTable {
 	 * returns null if it can't reasonably find it
 	 */
 	public String getname (int target) {
+		StringBuilder sb = new StringBuilder(32);
+		return appendname(sb, target) ? sb.toString() : null;
+	}
+
+	/**
+	 * Append the name of an address and the offset to sb, e.g. 4004cc<g+2c>,
+	 * without creating any objects. Returns false and appends nothing if it
+	 * can't reasonably find it.
+	 */
+	public boolean appendname (StringBuilder sb, int target) {
 		// total hack
 		int ntarget = target - loadoff;
 
 		int mid = getnameindex(ntarget);
 		if (mid == -1)
-			return null;
+			return false;
 		int off = ntarget - syms[mid].st_value;
-		if (off == 0)
-			return String.format("%x<%s>", target, syms[mid].name);
-		if (off < 0x10000)
-			return String.format("%x<%s+%x>", target, syms[mid].name, off);
-		return null;
+		if (off >= 0x10000)
+			return false;
+		appendhex(sb, target);
+		sb.append('<').append(syms[mid].name);
+		if (off != 0)
+			appendhex(sb.append('+'), off);
+		sb.append('>');
+		return true;
+	}
+
+	/**
+	 * Append lower case hex without leading zeros, as Integer.toHexString()
+	 */
+	public static StringBuilder appendhex (StringBuilder sb, int x) {
+		for (int n = Math.max(0, 7 - Integer.numberOfLeadingZeros(x) / 4); n >= 0; n--)
+			sb.append(hex[(x >>> (n * 4)) & 0xf]);
+		return sb;
 	}
 
 	public String getnamesafe (int target) {
-		int ntarget = target - loadoff;
-		String name = getname(ntarget);
+		String name = getname(target);
 		return name != null ? name : Integer.toHexString(target);
 	}
 
@@ -158,19 +188,14 @@ public class SymbolTable {
 	}
 
 	/**
-	 * Get the address of a symbol. This method is O(n), i.e. very slow. Use only
-	 * for debugging purposes.
+	 * Get the address of a symbol, or 0 if there is no such symbol.
 	 */
 	public int getaddress (String name) {
 		if (syms == null) {
 			return Integer.parseInt(name, 16);
 		}
-		for (int n = 0; n < syms.length; n++) {
-			Elf32_Sym s = syms[n];
-			if (s.name.equals(name))
-				return s.st_value;
-		}
-		return 0;
+		Integer a = names.get(name);
+		return a != null ? a + loadoff : 0;
 	}
 
 	/**
@@ -0,0 +1,113 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.fs;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+ * A MyDataInput over a big endian byte buffer holding part of a file, so the
+ * ELF loader can read a whole table from the file in one go and then parse it
+ * field by field without a read from the file for each one.
+ */
+public final class BufferDataInput implements MyDataInput {
+  
+  /**
+   * The bytes, position 0 is the start of the part of the file
+   */
+  private final ByteBuffer buf;
+  
+  /**
+   * The file the bytes came from, may be null
+   */
+  private final FileDesc file;
+  
+  /**
+   * Create a MyDataInput reading from the given buffer
+   */
+  public BufferDataInput(ByteBuffer buf, FileDesc file) {
+    this.buf = buf;
+    this.file = file;
+  }
+  
+  /**
+   * Read len bytes from offset off of the given input into a new
+   * BufferDataInput
+   */
+  public static BufferDataInput read(MyDataInput in, int off, int len) throws IOException {
+    return new BufferDataInput(ByteBuffer.wrap(bytes(in, off, len)), in.getfile());
+  }
+  
+  /**
+   * Read exactly len bytes from offset off of the given input
+   */
+  public static byte[] bytes(MyDataInput in, int off, int len) throws IOException {
+    byte[] b = new byte[len];
+    in.seekset(off);
+    int n = 0;
+    while (n < len) {
+      int r = in.read(b, n, len - n);
+      if (r <= 0)
+        throw new EOFException("read " + n + " of " + len + " bytes at " + off);
+      n += r;
+    }
+    return b;
+  }
+  
+  public int readint() throws IOException {
+    try {
+      return buf.getInt();
+    } catch (BufferUnderflowException e) {
+      throw new EOFException();
+    }
+  }
+  
+  public short readshort() throws IOException {
+    try {
+      return buf.getShort();
+    } catch (BufferUnderflowException e) {
+      throw new EOFException();
+    }
+  }
+  
+  public byte read() throws IOException {
+    try {
+      return buf.get();
+    } catch (BufferUnderflowException e) {
+      throw new EOFException();
+    }
+  }
+  
+  public int read(byte[] b, int off, int len) {
+    int n = Math.min(len, buf.remaining());
+    if (n == 0 && len > 0)
+      return -1;
+    buf.get(b, off, n);
+    return n;
+  }
+  
+  public int seekset(int pos) {
+    buf.position(pos);
+    return pos;
+  }
+  
+  public int seekcur(int len) {
+    buf.position(buf.position() + len);
+    return buf.position();
+  }
+  
+  /**
+   * Does nothing, the file is not closed
+   */
+  public void close() {
+    // not our file
+  }
+  
+  public FileDesc getfile() {
+    return file;
+  }
+  
+}
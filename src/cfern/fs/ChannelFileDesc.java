@@ -69,6 +69,17 @@ public abstract class ChannelFileDesc extends FileDesc {
     return ret;
   }
   
+  /**
+   * Scattering read from the channel if it supports them
+   */
+  public final long read(ByteBuffer[] bufs) throws IOException {
+    if (!(inChan instanceof ScatteringByteChannel))
+      return super.read(bufs);
+    long ret = ((ScatteringByteChannel) inChan).read(bufs);
+    Driver.opt().info("ChannelStream: scattering read %d", ret);
+    return ret;
+  }
+  
   public final void write(byte b) {
     // will never be called by memory layer
     throw new RuntimeException("no single byte write");
@@ -80,6 +91,18 @@ public abstract class ChannelFileDesc extends FileDesc {
     Driver.opt().info("ChannelStream: wrote %s", Driver.toString(buf, off, off + len));
   }
   
+  /**
+   * Gathering write to the channel if it supports them. A non blocking
+   * channel may take less than all of it.
+   */
+  public final long write(ByteBuffer[] bufs) throws IOException {
+    if (!(outChan instanceof GatheringByteChannel))
+      return super.write(bufs);
+    long ret = ((GatheringByteChannel) outChan).write(bufs);
+    Driver.opt().info("ChannelStream: gathering write %d", ret);
+    return ret;
+  }
+  
   public final SelectableChannel inChannel() {
     return (SelectableChannel) inChan;
   }
@@ -0,0 +1,185 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.fs;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A cache of reduced absolute paths to the file system, relative path and
+ * (for file systems that have them) node of the path, or to ENOENT. Used by
+ * VirtualFileSystem so repeated lookups (e.g. shells searching PATH) skip
+ * path reduction, the mount search and the directory walk.
+ *
+ * Positive entries stay until the path is removed or renamed. Negative entries
+ * are dropped when anything is created, and expire after the cache time of
+ * the file system (see FileSystem.cachetime()). Entries for paths with a
+ * symbolic link in them are dropped when anything changes, as the link or
+ * anything before it may have gone.
+ */
+final class DentryCache {
+  
+  /**
+   * Most entries, the cache is cleared if there are more
+   */
+  private static final int maxsize = 4096;
+  
+  /**
+   * A cached path
+   */
+  static final class Dentry {
+    final String path;
+    final FileSystem fs;
+    final String relpath;
+    /** node from FileSystem.lookup(), may be null */
+    final Object node;
+    /** target of the first link in relpath and where its name ends, or null */
+    final String link;
+    final int linkend;
+    /** if negative, the created count and nanoTime it is valid until */
+    final boolean negative;
+    final int created;
+    final long expires;
+    /** the change count, for entries with a link */
+    final int changed;
+    Dentry(String path, FileSystem fs, String relpath, Object node, String link, int linkend, boolean negative, int created, int changed, long expires) {
+      this.path = path;
+      this.fs = fs;
+      this.relpath = relpath;
+      this.node = node;
+      this.link = link;
+      this.linkend = linkend;
+      this.negative = negative;
+      this.created = created;
+      this.changed = changed;
+      this.expires = expires;
+    }
+  }
+  
+  private final ConcurrentMap<String,Dentry> entries = new ConcurrentHashMap<String,Dentry>();
+  
+  /**
+   * Changes of any kind, and changes that create names. An entry is only kept
+   * if there were no changes while it was being looked up.
+   */
+  private final AtomicInteger changes = new AtomicInteger(), created = new AtomicInteger();
+  
+  /**
+   * Lookups found, not found, and found negative (not synchronized, so only
+   * approximate)
+   */
+  private long hits, misses, negatives;
+  
+  /**
+   * Get the entry for a reduced path, or null if it is not cached or stale.
+   * Entries without a node (including negative ones) are stale once anything
+   * is created, as the path may now exist, and entries with a link once
+   * anything changes.
+   */
+  Dentry get(String apath) {
+    Dentry d = entries.get(apath);
+    if (d != null && ((d.link != null && d.changed != changes.get())
+        || (d.node == null && (d.created != created.get() || (d.negative && System.nanoTime() - d.expires > 0))))) {
+      entries.remove(apath, d);
+      d = null;
+    }
+    if (d == null)
+      misses++;
+    else if (d.negative)
+      negatives++;
+    else
+      hits++;
+    return d;
+  }
+  
+  /**
+   * Count of changes, get before looking up an entry to put
+   */
+  int changes() {
+    return changes.get();
+  }
+  
+  /**
+   * Count of creations, for the created field of a new entry
+   */
+  int creations() {
+    return created.get();
+  }
+  
+  /**
+   * Cache a looked up path, unless something changed since changes()
+   * returned the given value
+   */
+  Dentry put(String apath, Dentry d, int changed) {
+    if (entries.size() >= maxsize)
+      entries.clear();
+    entries.put(apath, d);
+    if (changes.get() != changed)
+      entries.remove(apath, d);
+    return d;
+  }
+  
+  /**
+   * Cache that the path of an entry does not exist, if its file system
+   * allows it. Uses the created count of the entry, so it is stale if
+   * anything was created since the entry was looked up.
+   */
+  void negative(String apath, Dentry d) {
+    long time = d.fs.cachetime();
+    if (time <= 0)
+      return;
+    // saturate rather than overflow for file systems that never expire
+    long ns = time >= Long.MAX_VALUE / 2000000 ? Long.MAX_VALUE / 2 : time * 1000000;
+    if (entries.size() >= maxsize)
+      entries.clear();
+    entries.put(apath, new Dentry(apath, d.fs, d.relpath, null, null, -1, true, d.created, d.changed, System.nanoTime() + ns));
+  }
+  
+  /**
+   * A name was created, so drop all negative entries
+   */
+  void created() {
+    changes.incrementAndGet();
+    created.incrementAndGet();
+  }
+  
+  /**
+   * A name was removed, drop it
+   */
+  void removed(String apath) {
+    changes.incrementAndGet();
+    entries.remove(apath);
+    entries.remove(apath + "/");
+  }
+  
+  /**
+   * A name and everything under it was removed or moved, drop them
+   */
+  void removedtree(String apath) {
+    changes.incrementAndGet();
+    String dir = apath.endsWith("/") ? apath : apath + "/";
+    Iterator<String> i = entries.keySet().iterator();
+    while (i.hasNext()) {
+      String p = i.next();
+      if (p.startsWith(dir) || p.equals(apath))
+        i.remove();
+    }
+  }
+  
+  /**
+   * Drop everything, e.g. after a mount
+   */
+  void clear() {
+    changes.incrementAndGet();
+    created.incrementAndGet();
+    entries.clear();
+  }
+  
+  public String toString() {
+    return String.format("DentryCache[size=%d hits=%d negative hits=%d misses=%d]", entries.size(), hits, negatives, misses);
+  }
+  
+}
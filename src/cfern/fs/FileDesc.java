@@ -5,6 +5,8 @@
 
 package cfern.fs;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
 
 import cfern.Driver;
@@ -151,6 +153,14 @@ public abstract class FileDesc implements MyDataInput, Errors {
     return null;
   }
   
+  /**
+   * Get the file channel of a regular file, for memory mapping. Returns null
+   * by default.
+   */
+  public FileChannel fileChannel() {
+    return null;
+  }
+  
   /**
    * Returns a stat of this file.
    */
@@ -312,6 +322,65 @@ public abstract class FileDesc implements MyDataInput, Errors {
    */
   public abstract int read(byte[] buf, int off, int len) throws IOException;
   
+  /**
+   * Read into the remaining space of the given buffers in order (a scattering
+   * read), advancing their positions. Returns number of bytes read or -1 on
+   * EOF. Like read(byte[],int,int) this may read less than requested.
+   * Default implementation calls read(byte[],int,int) for each buffer while
+   * more is available without blocking.
+   */
+  public long read(ByteBuffer[] bufs) throws IOException {
+    long ret = 0;
+    for (int n = 0; n < bufs.length; n++) {
+      ByteBuffer b = bufs[n];
+      int len = b.remaining();
+      if (len == 0)
+        continue;
+      if (ret > 0 && (inChannel() != null || available() <= 0))
+        break;
+      int rd;
+      if (b.hasArray()) {
+        rd = read(b.array(), b.arrayOffset() + b.position(), len);
+      } else {
+        byte[] tmp = new byte[len];
+        rd = read(tmp, 0, len);
+        if (rd > 0)
+          b.duplicate().put(tmp, 0, rd);
+      }
+      if (rd <= 0)
+        return ret > 0 ? ret : rd;
+      b.position(b.position() + rd);
+      ret += rd;
+      if (rd < len)
+        break;
+    }
+    return ret;
+  }
+  
+  /**
+   * Write the remaining bytes of the given buffers in order (a gathering
+   * write), advancing their positions. Returns number of bytes written, which
+   * may be less than requested (or 0) if the file is non blocking. Default
+   * implementation calls write(byte[],int,int) for each buffer.
+   */
+  public long write(ByteBuffer[] bufs) throws IOException {
+    long ret = 0;
+    for (int n = 0; n < bufs.length; n++) {
+      ByteBuffer b = bufs[n];
+      int len = b.remaining();
+      if (b.hasArray()) {
+        write(b.array(), b.arrayOffset() + b.position(), len);
+      } else {
+        byte[] tmp = new byte[len];
+        b.duplicate().get(tmp);
+        write(tmp, 0, len);
+      }
+      b.position(b.limit());
+      ret += len;
+    }
+    return ret;
+  }
+  
   /**
    * Read a word (for application use only).
    * Throws EOFException if end of file is reached.
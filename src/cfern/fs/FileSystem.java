@@ -172,6 +172,43 @@ public abstract class FileSystem implements Errors {
     return eio;
   }
   
+  /**
+   * Stat a file given the node returned by lookup() for the path. Base
+   * implementation ignores the node.
+   */
+  public String stat(Stat[] st, String path, Object node, boolean link) {
+    return stat(st, path, link);
+  }
+  
+  /**
+   * How long in ms the VFS may remember that a path does not exist (see
+   * DentryCache). Return Long.MAX_VALUE if names can only be created through
+   * the VFS, or 0 if they can appear at any time. Base implementation
+   * returns 0.
+   */
+  public long cachetime() {
+    return 0;
+  }
+  
+  /**
+   * Get a node (e.g. file object) for the path for the VFS to cache, or null.
+   * Only called if cachetime() is not 0. Base implementation returns null.
+   */
+  public Object lookup(String path) {
+    return null;
+  }
+  
+  /**
+   * Find the first symbolic link in the path (which may be the last name), so
+   * the VFS can follow it, possibly onto another file system. Returns the
+   * length of the path up to the end of the link name with the absolute
+   * target in target[0], or -1 if there is no link before a missing name.
+   * Base implementation returns -1, i.e. the file system follows its own links.
+   */
+  public int findlink(String[] target, String path) {
+    return -1;
+  }
+  
   /**
    * Check file access.
    * Path must be absolute and non blank.
@@ -72,6 +72,9 @@ public final class FileSystemUtil {
   public static String reduce(String path) {
     if (path.length() == 0 || !path.startsWith("/"))
       throw new RuntimeException("not an absolute path: " + path);
+    if (path.indexOf("//") < 0 && path.indexOf("/./") < 0 && path.indexOf("/../") < 0 && !path.endsWith("/.") && !path.endsWith("/.."))
+      // already reduced
+      return path;
     StringBuilder sb = new StringBuilder(path.length());
     
     int d = 0, nd = 0;
@@ -259,6 +259,32 @@ class SocketFileDesc extends FileDesc {
     return (rd <= 0) ? rd : read(buf, off, len);
   }
   
+  /**
+   * Scattering read from the socket, after anything already buffered
+   */
+  public long read(ByteBuffer[] bufs) throws IOException {
+    if (sockChan == null)
+      throw new RuntimeException("read but not readable");
+    
+    if (in.hasRemaining()) {
+      // just return what is buffered
+      long ret = 0;
+      for (int n = 0; n < bufs.length && in.hasRemaining(); n++) {
+        ByteBuffer b = bufs[n];
+        int r = Math.min(in.remaining(), b.remaining());
+        ByteBuffer src = in.duplicate();
+        src.limit(src.position() + r);
+        b.put(src);
+        in.position(in.position() + r);
+        ret += r;
+      }
+      return ret;
+    }
+    
+    sockChan.configureBlocking(true);
+    return sockChan.read(bufs);
+  }
+  
   /**
    * Actually read bytes from socket into buffer.
    * Returns number of bytes read.
@@ -312,6 +338,18 @@ class SocketFileDesc extends FileDesc {
     writeImp(true);
   }
   
+  /**
+   * Gathering write straight to the socket
+   */
+  public long write(ByteBuffer[] bufs) throws IOException {
+    if (sockChan == null)
+      throw new RuntimeException("write but not writeable");
+    
+    // a blocking write takes everything
+    sockChan.configureBlocking(true);
+    return sockChan.write(bufs);
+  }
+  
   protected void closeImp() throws IOException {
     if (sockChan != null)
       sockChan.close();
@@ -8,13 +8,14 @@ import java.io.IOException;
 import java.util.*;
 
 import cfern.Driver;
+import cfern.fs.DentryCache.Dentry;
 import cfern.sys.str.*;
 
 /**
  * The top level file system with methods that delegate to another instance of
  * FileSystem with the appropriate mount point (this filesystem is itself not
- * mounted).
- * FIXME path methods (i.e. all of them) may involve cross fs links...
+ * mounted). Symbolic links in paths are followed here, so they may point to
+ * another file system.
  */
 public class VirtualFileSystem extends FileSystem {
   
@@ -51,6 +52,30 @@ public class VirtualFileSystem extends FileSystem {
    * List of loaded filesystems.
    */
   private final Vector<FileSystem> mounts = new Vector<FileSystem>();
+  
+  /**
+   * A node of the mount trie, with the file system mounted at this path (if
+   * any) and the nodes for each name below it
+   */
+  private static final class MountNode {
+    FileSystem fs;
+    final Map<String,MountNode> names = new HashMap<String,MountNode>();
+  }
+  
+  /**
+   * Trie of the mounts by path name, rebuilt on each mount
+   */
+  private volatile MountNode mounttrie = new MountNode();
+  
+  /**
+   * Cache of looked up paths
+   */
+  private final DentryCache dcache = new DentryCache();
+  
+  /**
+   * Most links followed in one path, as in Linux
+   */
+  private static final int maxlinks = 40;
 
   /**
    * Create a new top level file system
@@ -97,7 +122,11 @@ public class VirtualFileSystem extends FileSystem {
       }
       
       FileSystem fs = f.newInstance(mount, dev);
-      mounts.add(fs);
+      synchronized (mounts) {
+        mounts.add(fs);
+        mounttrie = trie();
+      }
+      dcache.clear();
       Driver.opt().info("mounted %s", fs);
       return true;
       
@@ -113,9 +142,16 @@ public class VirtualFileSystem extends FileSystem {
    * string error code or null with the file in uf[0].
    */
   public String open(FileDesc[] uf, String path, boolean rd, boolean wr, boolean cr, boolean ex, boolean ap, boolean tr) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.open(uf, fs.relpath(path), rd, wr, cr, ex, ap, tr);
+    Dentry d = walk(FileSystemUtil.reduce(path), true);
+    if (d == null)
+      return eloop;
+    if (d.negative && !cr)
+      return enoent;
+    String ret = d.fs.open(uf, d.relpath, rd, wr, cr, ex, ap, tr);
+    if (cr)
+      // may have created a file
+      dcache.created();
+    return cr ? ret : notfound(d, ret);
   }
   
   /**
@@ -123,86 +159,175 @@ public class VirtualFileSystem extends FileSystem {
    * st[0].
    */
   public String stat(Stat[] st, String path, boolean link) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.stat(st, fs.relpath(path), link);
+    Dentry d = walk(FileSystemUtil.reduce(path), !link);
+    if (d == null)
+      return eloop;
+    if (d.negative)
+      return enoent;
+    return notfound(d, d.fs.stat(st, d.relpath, d.node, link));
   }
   
   /**
    * Create a directory
    */
   public String mkdir(String path, int mode, int mask) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.mkdir(fs.relpath(path), mode, mask);
+    Dentry d = walk(FileSystemUtil.reduce(path), false);
+    if (d == null)
+      return eloop;
+    String ret = d.fs.mkdir(d.relpath, mode, mask);
+    dcache.created();
+    return ret;
   }
   
   /**
    * Check file access
    */
   public String access(String path, int mode) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.access(fs.relpath(path), mode);
+    Dentry d = walk(FileSystemUtil.reduce(path), true);
+    if (d == null)
+      return eloop;
+    if (d.negative)
+      return enoent;
+    return notfound(d, d.fs.access(d.relpath, mode));
   }
   
   /**
    * Remove a file
    */
   public String unlink(String path) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.unlink(fs.relpath(path));
+    Dentry d = walk(FileSystemUtil.reduce(path), false);
+    if (d == null)
+      return eloop;
+    String ret = d.fs.unlink(d.relpath);
+    dcache.removed(d.path);
+    return ret;
   }
   
   /**
    * Remove a file
    */
   public String rmdir(String path) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.unlink(fs.relpath(path));
+    Dentry d = walk(FileSystemUtil.reduce(path), false);
+    if (d == null)
+      return eloop;
+    String ret = d.fs.unlink(d.relpath);
+    dcache.removedtree(d.path);
+    return ret;
   }
   
   /**
    * Stat fs
    */
   public String statfs(StatFS[] ret, String path) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.statfs(ret, fs.relpath(path));
+    Dentry d = walk(FileSystemUtil.reduce(path), true);
+    if (d == null)
+      return eloop;
+    return d.fs.statfs(ret, d.relpath);
   }
   
   /**
    * Rename a file on the same filing system
    */
   public String rename(String from, String to) {
-    from = FileSystemUtil.reduce(from);
-    to = FileSystemUtil.reduce(to);
-    FileSystem fs = fsfor(from), fsto = fsfor(to);
-    if (fs != fsto)
+    Dentry df = walk(FileSystemUtil.reduce(from), false), dt = walk(FileSystemUtil.reduce(to), false);
+    if (df == null || dt == null)
+      return eloop;
+    if (df.fs != dt.fs)
       return exdev;
     
-    Driver.opt().info("vfs: renaming %s to %s for %s", from, to, fs);
-    return fs.rename(fs.relpath(from), fs.relpath(to));
+    Driver.opt().info("vfs: renaming %s to %s for %s", df.path, dt.path, df.fs);
+    String ret = df.fs.rename(df.relpath, dt.relpath);
+    dcache.removedtree(df.path);
+    dcache.removedtree(dt.path);
+    dcache.created();
+    return ret;
   }
   
   /**
    * Rename a file on the same filing system
    */
   public String readlink(String[] targetret, String path) {
-    path = FileSystemUtil.reduce(path);
-    FileSystem fs = fsfor(path);
-    return fs.readlink(targetret, fs.relpath(path));
+    Dentry d = walk(FileSystemUtil.reduce(path), false);
+    if (d == null)
+      return eloop;
+    return d.fs.readlink(targetret, d.relpath);
   }
   
   /**
    * Create symlink
    */
   public String symlink(String to, String from) {
-    from = FileSystemUtil.reduce(from);
-    FileSystem fs = fsfor(from);
-    return fs.symlink(to, fs.relpath(from));
+    Dentry d = walk(FileSystemUtil.reduce(from), false);
+    if (d == null)
+      return eloop;
+    String ret = d.fs.symlink(to, d.relpath);
+    dcache.created();
+    return ret;
+  }
+  
+  /**
+   * Look up an absolute (and reduced) path, following symbolic links in the
+   * directories of the path and optionally in the last name, from one file
+   * system to another. Returns null if there are too many links.
+   */
+  private Dentry walk(String apath, boolean last) {
+    for (int n = 0; n <= maxlinks; n++) {
+      Dentry d = dentry(apath);
+      if (d.link == null || (!last && d.linkend == d.relpath.length()))
+        return d;
+      // replace the path up to the link with its target
+      apath = FileSystemUtil.reduce(d.link.concat(d.relpath.substring(d.linkend)));
+      Driver.opt().fslog("walk: %s%s -> %s", d.fs.getmount(), d.relpath.substring(1), apath);
+    }
+    return null;
+  }
+  
+  /**
+   * Look up an absolute (and reduced) path in the dentry cache, or find its
+   * file system, relative path, node and first link and cache them
+   */
+  private Dentry dentry(String apath) {
+    Dentry d = dcache.get(apath);
+    if (d == null) {
+      int changed = dcache.changes(), created = dcache.creations();
+      FileSystem fs = fsfor(apath);
+      String rel = fs.relpath(apath);
+      Object node = fs.cachetime() != 0 ? fs.lookup(rel) : null;
+      String[] link = new String[1];
+      int linkend = fs.findlink(link, rel);
+      d = dcache.put(apath, new Dentry(apath, fs, rel, node, link[0], linkend, false, created, changed, 0), changed);
+    }
+    return d;
+  }
+  
+  /**
+   * Cache the path of the entry as not found if the result of a lookup
+   * without a node was enoent. Returns the result.
+   */
+  private String notfound(Dentry d, String ret) {
+    if (d.node == null && enoent.equals(ret))
+      dcache.negative(d.path, d);
+    return ret;
+  }
+  
+  /**
+   * Build the mount trie from the mounts
+   */
+  private MountNode trie() {
+    MountNode root = new MountNode();
+    for (FileSystem fs : mounts) {
+      MountNode node = root;
+      for (String name : fs.getmount().split("/")) {
+        if (name.length() == 0)
+          continue;
+        MountNode next = node.names.get(name);
+        if (next == null)
+          node.names.put(name, next = new MountNode());
+        node = next;
+      }
+      node.fs = fs;
+    }
+    return root;
   }
   
   /**
@@ -216,24 +341,24 @@ public class VirtualFileSystem extends FileSystem {
     if (apath.equals(".") || apath.equals(".."))
       throw new RuntimeException("file path is relative");
     
-    // find longest matching mount
-    int fsn = -1, len = 0;
-    for (int n = 0; n < mounts.size(); n++) {
-      FileSystem fs = mounts.get(n);
-      String mount = fs.getmount();
-      // /c/x -> /c/, /c -> /c/, /cf -> /
-      if (apath.startsWith(mount) || (mount.startsWith(apath) && (apath.length() == mount.length() - 1))) {
-        if (mount.length() > len) {
-          fsn = n;
-          len = mount.length();
-        }
+    // find longest matching mount, /c/x -> /c/, /c -> /c/, /cf -> /
+    MountNode node = mounttrie;
+    FileSystem ret = node.fs;
+    for (int n = 1, len = apath.length(); n < len && node != null;) {
+      int e = apath.indexOf('/', n);
+      if (e < 0)
+        e = len;
+      if (e > n) {
+        node = node.names.get(apath.substring(n, e));
+        if (node != null && node.fs != null)
+          ret = node.fs;
       }
+      n = e + 1;
     }
     
-    if (fsn == -1)
+    if (ret == null)
       throw new RuntimeException("could not find /");
     
-    FileSystem ret = mounts.get(fsn);
     Driver.opt().fslog("fsfor: %s -> %s", apath, ret);
     return ret;
   }
@@ -62,6 +62,14 @@ public class NativeFileSystem extends FileSystem {
     this.nroot = nroot.endsWith(nseps) ? nroot : nroot.concat(nseps);
   }
   
+  /**
+   * Native files may be created outside the emulator, so the VFS may only
+   * remember missing files for a second
+   */
+  public long cachetime() {
+    return 1000;
+  }
+  
   public String getShortName() {
     return name;
   }
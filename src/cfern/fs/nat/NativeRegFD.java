@@ -5,6 +5,8 @@
 
 package cfern.fs.nat;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import cfern.fs.*;
 import cfern.sys.str.*;
 
@@ -115,6 +117,27 @@ class NativeRegFD extends RegFileDesc {
     return ret;
   }
   
+  /**
+   * The channel of the random access file
+   */
+  public FileChannel fileChannel() {
+    return raf.getChannel();
+  }
+  
+  /**
+   * Scattering read straight from the file channel (shares the file pointer)
+   */
+  public long read(ByteBuffer[] bufs) throws IOException {
+    return raf.getChannel().read(bufs);
+  }
+  
+  /**
+   * Gathering write straight to the file channel
+   */
+  public long write(ByteBuffer[] bufs) throws IOException {
+    return raf.getChannel().write(bufs);
+  }
+  
   /**
    * Read byte from random access file
    */
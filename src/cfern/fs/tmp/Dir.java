@@ -74,11 +74,9 @@ public class Dir extends File {
       } else {
         Link l = f.link();
         if (l != null) {
-          String rem = Arrays.toString(Arrays.copyOfRange(path, n + 1, path.length));
-          Driver.opt().warn("should follow link to %s %s", l.target(), rem);
-          Thread.dumpStack();
-          // can't follow link, may be on other fs
-          return null; // return Option.forLink("...")
+          // links in paths are followed by the VFS (see FileSystem.findlink)
+          Driver.opt().fslog("Dir: link to %s in %s", l.target(), Arrays.toString(path));
+          return null;
         } else if (f.dir() == null) {
           // not a dir or link
           return null; // return Option.notDir
@@ -19,6 +19,20 @@ public abstract class Reg extends File {
   
   abstract void open(boolean truncate);
   
+  /**
+   * A descriptor from open() was closed. Default does nothing.
+   */
+  void close() {
+    //
+  }
+  
+  /**
+   * The file was removed from its directory. Default does nothing.
+   */
+  void unlinked() {
+    //
+  }
+  
   /**
    * Return current file length.
    */
@@ -36,6 +50,32 @@ public abstract class Reg extends File {
    */
   abstract int get(int off);
   
+  /**
+   * Copy up to len bytes at offset into buf. Returns the number of bytes
+   * read, 0 at end of file. Subclasses should override this to copy in bulk.
+   */
+  int read(int off, byte[] buf, int boff, int len) {
+    for (int n = 0; n < len; n++) {
+      int b = get(off + n);
+      if (b < 0)
+        return n;
+      buf[boff + n] = (byte) b;
+    }
+    return len;
+  }
+  
+  /**
+   * Copy len bytes from buf to offset. Returns the number of bytes written,
+   * less than len on overflow. Subclasses should override this to copy in
+   * bulk.
+   */
+  int write(int off, byte[] buf, int boff, int len) {
+    for (int n = 0; n < len; n++)
+      if (!put(off + n, buf[boff + n]))
+        return n;
+    return len;
+  }
+  
   /**
    * Set length of file
    */
@@ -5,30 +5,95 @@
 
 package cfern.fs.tmp;
 import java.io.*;
-import java.util.Vector;
+import java.util.Arrays;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import cfern.Driver;
 import cfern.mem.Pages;
+import cfern.mem.Pages.Page;
 import cfern.sys.str.Stat;
 
 /**
- * A virtual sparse regular file backed by a list of byte arrays. For initial
+ * A virtual sparse regular file backed by a radix tree of pages. For initial
  * content, subclass and implement content(). There is no file pointer, it must
  * be provided by VirtualReg. This class is thread safe.
+ *
+ * Readers and writers lock only the page they are copying to or from, so
+ * a read never sees part of a write to the page. Readers share the read lock
+ * of the page, writers take its write lock. Finding a page in the tree takes
+ * no locks, adding pages and truncating lock the whole file.
+ *
+ * Pages may be spilled to disk by the TempStore of the file system, and are
+ * read back in under the write lock of the page. They are dropped once the
+ * file is unlinked and closed.
  */
 public class SparseReg extends Reg {
   
   /**
-   * 4mb max size
+   * Max size, as file offsets are ints
    */
-  private static final int maxlen = 0x400000;
+  private static final int maxlen = Integer.MAX_VALUE;
   
   /**
-   * Backing vector of byte arrays.
+   * Bits of page number per level of the tree, so 16 entries per node
    */
-  private final Vector<byte[]> pages = new Vector<byte[]>();
+  private static final int bits = 4, fanout = 1 << bits;
+  
+  /**
+   * A page of the file. The page is null if spilled (at offset spill) or
+   * dropped by truncate.
+   */
+  static final class Slot {
+    /** guards page, dropped and spill, only writers change them */
+    final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    Page page;
+    boolean dropped;
+    long spill = -1;
+    /** set on access, cleared by the TempStore clock */
+    volatile boolean used = true;
+    /** guarded by the TempStore */
+    boolean queued;
+    Slot(Page page) {
+      this.page = page;
+    }
+  }
+  
+  /**
+   * An interior node of the tree, holding nodes or (at the bottom) slots
+   */
+  private static final class Node {
+    final AtomicReferenceArray<Object> items = new AtomicReferenceArray<Object>(fanout);
+  }
+  
+  /**
+   * The root node and the height of the tree, replaced when the tree grows
+   */
+  private static final class Root {
+    final Node node;
+    final int height;
+    Root(Node node, int height) {
+      this.node = node;
+      this.height = height;
+    }
+  }
+  
+  private volatile Root root = new Root(new Node(), 1);
+  private final AtomicInteger length = new AtomicInteger();
+  private volatile int numpages = 0;
   private boolean opened = false;
-  private int length = 0;
+  
+  /**
+   * Open descriptors, and whether the file has been removed from its
+   * directory. Guarded by the file.
+   */
+  private int refs;
+  private boolean unlinked;
+  
+  /**
+   * Memory budget of the file system, null if not in one yet
+   */
+  private volatile TempStore store;
   
   /**
    * Create file for given temp filing system
@@ -42,6 +107,7 @@ public class SparseReg extends Reg {
    * truncating.
    */
   synchronized void open(boolean truncate) {
+    refs++;
     // sync may not be neccessary
     if (opened)
       return;
@@ -52,46 +118,181 @@ public class SparseReg extends Reg {
     try {
       InputStream is = content();
       if (is != null) {
-        int p = 0, b = 0;
-        while ((b = is.read()) >= 0)
-          put(p++, (byte) b);
+        byte[] buf = new byte[8192];
+        int p = 0, n;
+        while ((n = is.read(buf)) >= 0)
+          p += write(p, buf, 0, n);
       }
     } catch (IOException e) {
       e.printStackTrace();
     }
   }
   
+  /**
+   * Drop the pages if the file has been unlinked and this was the last
+   * descriptor
+   */
+  synchronized void close() {
+    if (--refs == 0 && unlinked)
+      truncate(0);
+  }
+  
+  /**
+   * Drop the pages now if the file is not open, else when it is closed
+   */
+  synchronized void unlinked() {
+    unlinked = true;
+    if (refs == 0)
+      truncate(0);
+  }
+  
+  /**
+   * Use the memory budget of the file system
+   */
+  public void setfs(TempFileSystem fs) {
+    super.setfs(fs);
+    store = fs.store();
+  }
+  
   /**
    * Return current file length.
    */
   int getsize() {
-    return length;
+    return length.get();
+  }
+  
+  /**
+   * Number of pages a tree of the given height can hold
+   */
+  private static long capacity(int height) {
+    return 1L << (bits * height);
+  }
+  
+  /**
+   * Find the slot of page p, or null if there isn't one. Takes no locks.
+   */
+  private Slot slot(int p) {
+    Root r = root;
+    if (p >= capacity(r.height))
+      return null;
+    Node node = r.node;
+    for (int h = r.height - 1; h > 0; h--) {
+      node = (Node) node.items.get((p >>> (bits * h)) & (fanout - 1));
+      if (node == null)
+        return null;
+    }
+    return (Slot) node.items.get(p & (fanout - 1));
+  }
+  
+  /**
+   * Get the slot of page p, adding a page of zeros if there isn't one
+   */
+  private synchronized Slot alloc(int p) {
+    Slot s = slot(p);
+    if (s != null)
+      return s;
+    Root r = root;
+    while (p >= capacity(r.height)) {
+      // grow the tree upwards
+      Node node = new Node();
+      node.items.set(0, r.node);
+      root = r = new Root(node, r.height + 1);
+    }
+    Node node = r.node;
+    for (int h = r.height - 1; h > 0; h--) {
+      int i = (p >>> (bits * h)) & (fanout - 1);
+      Node next = (Node) node.items.get(i);
+      if (next == null)
+        node.items.set(i, next = new Node());
+      node = next;
+    }
+    s = new Slot(Pages.alloc());
+    node.items.set(p & (fanout - 1), s);
+    numpages++;
+    TempStore store = this.store;
+    if (store != null)
+      store.admit(s);
+    return s;
+  }
+  
+  /**
+   * Get the page of a slot, reading it back in if spilled. Must hold the
+   * write lock of the slot and the slot must not be dropped.
+   */
+  private Page resident(Slot s) {
+    Page page = s.page;
+    if (page == null)
+      page = store.load(s);
+    else if (!s.used)
+      s.used = true;
+    return page;
+  }
+  
+  /**
+   * Spill pages if over the memory budget. Must not hold any slot lock.
+   */
+  private void trim() {
+    TempStore store = this.store;
+    if (store != null)
+      store.trim();
+  }
+  
+  /**
+   * Take the slot of page p out of the tree, returns null if there isn't one.
+   * Must hold the file lock.
+   */
+  private Slot remove(int p) {
+    Root r = root;
+    if (p >= capacity(r.height))
+      return null;
+    Node node = r.node;
+    for (int h = r.height - 1; h > 0; h--) {
+      node = (Node) node.items.get((p >>> (bits * h)) & (fanout - 1));
+      if (node == null)
+        return null;
+    }
+    return (Slot) node.items.getAndSet(p & (fanout - 1), null);
+  }
+  
+  /**
+   * Raise the length to at least len
+   */
+  private void extend(int len) {
+    int l;
+    while ((l = length.get()) < len && !length.compareAndSet(l, len)) {
+      // retry
+    }
   }
   
   /**
    * Put byte at offset. Returns false on overflow.
    */
-  synchronized boolean put(int off, byte b) {
+  boolean put(int off, byte b) {
     //Driver.opt().println("Reg.put(%d,%d) len=%d", off, b, len);
-    if (off < 0 || off >= maxlen)
+    if (off < 0)
       return false;
-
     int p = off / Pages.size;
-    // add more null pages
-    if (p >= pages.size())
-      pages.setSize(p + 1);
-
-    // get page
-    byte[] page = pages.get(p);
-    if (page == null)
-      pages.set(p, page = Pages.alloc());
-
-    page[off % Pages.size] = b;
-
-    if (off >= length)
-      length = off + 1;
-
-    return true;
+    for (;;) {
+      Slot s = slot(p);
+      // only a new or reloaded page can take the store over budget
+      boolean grew = s == null;
+      if (grew)
+        s = alloc(p);
+      s.lock.writeLock().lock();
+      try {
+        if (s.dropped)
+          // dropped by truncate
+          continue;
+        grew |= s.page == null;
+        resident(s).data[off % Pages.size] = b;
+      } finally {
+        s.lock.writeLock().unlock();
+      }
+      extend(off + 1);
+      if (grew)
+        trim();
+      return true;
+    }
   }
   
   /**
@@ -99,37 +300,177 @@ public class SparseReg extends Reg {
    * Returns -1 at end of file.
    * Returns 0 for empty regions.
    */
-  synchronized int get(int off) {
-    if (off < 0 || off >= length)
+  int get(int off) {
+    if (off < 0 || off >= length.get())
       return -1;
-
     int p = off / Pages.size;
-    byte[] page = pages.get(p);
-    if (page == null)
+    for (;;) {
+      Slot s = slot(p);
+      if (s == null)
+        return 0;
+      s.lock.readLock().lock();
+      try {
+        Page page = s.page;
+        if (page != null) {
+          if (!s.used)
+            s.used = true;
+          return page.data[off % Pages.size] & 0xff;
+        }
+      } finally {
+        s.lock.readLock().unlock();
+      }
+      // spilled or dropped
+      int b = -1;
+      s.lock.writeLock().lock();
+      try {
+        if (!s.dropped)
+          b = resident(s).data[off % Pages.size] & 0xff;
+      } finally {
+        s.lock.writeLock().unlock();
+      }
+      if (b >= 0) {
+        trim();
+        return b;
+      }
+      // page was dropped, look it up again
+    }
+  }
+  
+  /**
+   * Copy up to len bytes at offset into buf, a page at a time. Returns the
+   * number of bytes read, 0 at end of file.
+   */
+  int read(int off, byte[] buf, int boff, int len) {
+    int length = this.length.get();
+    if (off < 0 || off >= length)
       return 0;
-
-    return page[off % Pages.size] & 0xff;
+    len = Math.min(len, length - off);
+    boolean loaded = false;
+    for (int n = 0; n < len;) {
+      int o = (off + n) % Pages.size, l = Math.min(len - n, Pages.size - o);
+      loaded |= load((off + n) / Pages.size, o, buf, boff + n, l);
+      n += l;
+    }
+    if (loaded)
+      trim();
+    return len;
+  }
+  
+  /**
+   * Copy part of page p into buf with the page locked for reading, or for
+   * writing if it has to be read back in. Returns true if it was read back
+   * in.
+   */
+  private boolean load(int p, int o, byte[] buf, int boff, int l) {
+    for (;;) {
+      Slot s = slot(p);
+      if (s == null) {
+        Arrays.fill(buf, boff, boff + l, (byte) 0);
+        return false;
+      }
+      s.lock.readLock().lock();
+      try {
+        Page page = s.page;
+        if (page != null) {
+          if (!s.used)
+            s.used = true;
+          System.arraycopy(page.data, o, buf, boff, l);
+          return false;
+        }
+      } finally {
+        s.lock.readLock().unlock();
+      }
+      s.lock.writeLock().lock();
+      try {
+        if (!s.dropped) {
+          System.arraycopy(resident(s).data, o, buf, boff, l);
+          return true;
+        }
+      } finally {
+        s.lock.writeLock().unlock();
+      }
+      // page was dropped, look it up again
+    }
+  }
+  
+  /**
+   * Copy len bytes from buf to offset, a page at a time, locking each page in
+   * turn. Returns the number of bytes written, less than len on overflow.
+   */
+  int write(int off, byte[] buf, int boff, int len) {
+    if (off < 0)
+      return 0;
+    len = Math.min(len, maxlen - off);
+    for (int n = 0; n < len;) {
+      int p = (off + n) / Pages.size, o = (off + n) % Pages.size, l = Math.min(len - n, Pages.size - o);
+      Slot s = slot(p);
+      if (s == null)
+        s = alloc(p);
+      s.lock.writeLock().lock();
+      try {
+        if (s.dropped)
+          // dropped by truncate, try again with a new page
+          continue;
+        System.arraycopy(buf, boff + n, resident(s).data, o, l);
+      } finally {
+        s.lock.writeLock().unlock();
+      }
+      n += l;
+    }
+    if (len > 0)
+      extend(off + len);
+    trim();
+    return len;
   }
   
   /**
    * Set length of file
    */
   synchronized void truncate(int newsize) {
+    int length = this.length.get();
     if (newsize < 0 || length <= newsize) {
       Driver.opt().debug("Reg: ignored truncate of file length %d to %d", length, newsize);
       return;
     }
+    this.length.set(newsize);
 
     // free the truncated pages
     int startp = (newsize / Pages.size) + ((newsize % Pages.size) == 0 ? 0 : 1);
-    int endp = length / Pages.size;
+    int endp = (length - 1) / Pages.size;
     Driver.opt().warn("Reg: truncate %d to %d: dropping pages %d to %d", length, newsize, startp, endp); 
-    while (endp >= startp) {
-      Pages.free(pages.get(startp));
-      pages.set(startp, null);
-      startp++;
+    for (int p = startp; p <= endp; p++) {
+      Slot s = remove(p);
+      if (s == null)
+        continue;
+      s.lock.writeLock().lock();
+      try {
+        // so readers and writers look again
+        s.dropped = true;
+        Page page = s.page;
+        s.page = null;
+        if (page != null)
+          Pages.free(page);
+        if (store != null)
+          store.drop(s);
+        s.spill = -1;
+      } finally {
+        s.lock.writeLock().unlock();
+      }
+      numpages--;
+    }
+    
+    // zero the rest of the last page so it reads as zeros if extended
+    if (newsize % Pages.size != 0) {
+      Slot s = slot(newsize / Pages.size);
+      if (s != null) {
+        s.lock.writeLock().lock();
+        try {
+          Arrays.fill(resident(s).data, newsize % Pages.size, Pages.size, (byte) 0);
+        } finally {
+          s.lock.writeLock().unlock();
+        }
+      }
     }
-    length = newsize;
   }
 
   /**
@@ -144,7 +485,7 @@ public class SparseReg extends Reg {
   Stat stat() {
     Stat st = stat(Stat.reg);
     st.blksize = Pages.size;
-    st.blocks = pages.size();
+    st.blocks = numpages;
     st.size = getsize();
     return st;
   }
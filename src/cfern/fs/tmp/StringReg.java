@@ -4,6 +4,7 @@
  */
 
 package cfern.fs.tmp;
+import java.util.Arrays;
 import cfern.Driver;
 import cfern.sys.str.Stat;
 
@@ -79,7 +80,27 @@ public class StringReg extends Reg {
   }
   
   synchronized int get(int off) {
-    return (off < 0 || off >= length) ? -1 : bytes[off];
+    return (off < 0 || off >= length) ? -1 : bytes[off] & 0xff;
+  }
+  
+  synchronized int read(int off, byte[] buf, int boff, int num) {
+    if (off < 0 || off >= length)
+      return 0;
+    num = Math.min(num, length - off);
+    System.arraycopy(bytes, off, buf, boff, num);
+    return num;
+  }
+  
+  synchronized int write(int off, byte[] buf, int boff, int num) {
+    if (off < 0 || off >= len)
+      return 0;
+    num = Math.min(num, len - off);
+    if (off > length)
+      Arrays.fill(bytes, length, off, (byte) 0);
+    System.arraycopy(buf, boff, bytes, off, num);
+    if (off + num > length)
+      length = off + num;
+    return num;
   }
   
   synchronized void truncate(int newLength) {
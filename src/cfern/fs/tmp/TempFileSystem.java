@@ -6,7 +6,7 @@
 package cfern.fs.tmp;
 import java.util.Arrays;
 
-import cfern.Driver;
+import cfern.*;
 import cfern.fs.*;
 import cfern.sys.Constants;
 import cfern.sys.str.*;
@@ -27,7 +27,8 @@ public class TempFileSystem extends FileSystem {
    */
   public static final Factory tmpfac = new Factory() {
     public FileSystem newInstance(String mount, String dev) {
-      return new TempFileSystem(mount, null);
+      // device is the options, e.g. size=64m
+      return new TempFileSystem(mount, dev);
     }
     public String name() {
       return name;
@@ -38,15 +39,52 @@ public class TempFileSystem extends FileSystem {
    * The root directory. Subclasses may add files directly.
    */
   protected final Dir root = new Dir();
+  
+  /**
+   * Memory budget for file content
+   */
+  private final TempStore store;
 
   /**
-   * Create a new empty virtual file system. Opt is ignored (used by some
-   * subclasses).
+   * Memory budget shared by all file systems not given a size, created when
+   * first needed
+   */
+  private static TempStore shared;
+
+  /**
+   * Create a new empty virtual file system. Opt may give the file system its
+   * own memory budget (size=64m), otherwise it shares the default budget.
+   * Other options are ignored (used by some subclasses).
    */
   protected TempFileSystem(String mount, String opt) {
     super(mount, opt);
+    if (opt != null && opt.startsWith("size="))
+      store = new TempStore(Options.parsesize(opt.substring(5)));
+    else
+      store = shared();
     root.setfs(this);
   }
+
+  /**
+   * Get the shared memory budget, the tmp option or a quarter of the max
+   * heap
+   */
+  private static synchronized TempStore shared() {
+    if (shared == null) {
+      long size = Driver.opt().tmpsize;
+      if (size <= 0)
+        size = Runtime.getRuntime().maxMemory() / 4;
+      shared = new TempStore(size);
+    }
+    return shared;
+  }
+  
+  /**
+   * Get the memory budget of this file system
+   */
+  TempStore store() {
+    return store;
+  }
   
   public String getShortName() {
     return name;
@@ -67,7 +105,6 @@ public class TempFileSystem extends FileSystem {
     } else {
       // follow directory path and get file/dir
       String[] patha = FileSystemUtil.split(path);
-      // FIXME path may include cross fs link
       pathd = root.getdirfor(patha, false);
       if (pathd == null) {
         Driver.opt().fslog("Temp: could not get dir for %s", Arrays.toString(patha));
@@ -123,9 +160,7 @@ public class TempFileSystem extends FileSystem {
       ret = new TempChannelFD(c.open());
       
     } else if (l != null) {
-      // FIXME need a link count, but also for stat
-      // also, what if O_CREAT and link target doesn't exist?
-      
+      // the VFS follows links before getting here, unless called directly
       String tgt = l.target(getmount(), path);
       return FileSystem.get().open(uf, tgt, rd, wr, cr, ex, ap, tr);
       
@@ -143,6 +178,16 @@ public class TempFileSystem extends FileSystem {
       //Machine.opt().warn("TempFileSystem: could not find '%s'", path);
       return enoent;
     }
+    return stat(st, path, f, link);
+  }
+  
+  /**
+   * Stat the file looked up earlier, so the directories are not walked again
+   */
+  public String stat(Stat[] st, String path, Object node, boolean link) {
+    if (node == null)
+      return stat(st, path, link);
+    File f = (File) node;
     
     // follow link if not doing lstat
     if (!link) {
@@ -157,6 +202,47 @@ public class TempFileSystem extends FileSystem {
     return null;
   }
   
+  /**
+   * Names only change through the VFS, so it can remember missing files
+   * until something is created
+   */
+  public long cachetime() {
+    return Long.MAX_VALUE;
+  }
+  
+  /**
+   * Get the File at the path for the VFS to cache
+   */
+  public Object lookup(String path) {
+    return root.getfile(path);
+  }
+  
+  /**
+   * Walk the directories of the path to the first link, for the VFS to
+   * follow
+   */
+  public int findlink(String[] target, String path) {
+    Dir d = root;
+    for (int n = 1, len = path.length(); n < len && d != null;) {
+      int e = path.indexOf('/', n);
+      if (e < 0)
+        e = len;
+      if (e > n) {
+        File f = d.get(path.substring(n, e));
+        if (f == null)
+          return -1;
+        Link l = f.link();
+        if (l != null) {
+          target[0] = l.target(getmount(), path.substring(0, e));
+          return e;
+        }
+        d = f.dir();
+      }
+      n = e + 1;
+    }
+    return -1;
+  }
+  
   public String mkdir(String upath, int mode, int mask) {
     Dir d = root.getdir(upath, true);
     if (d == null)
@@ -196,7 +282,9 @@ public class TempFileSystem extends FileSystem {
       return enoent;
     
     // overwrite target
-    td.remove(tf);
+    File old = td.remove(tf);
+    if (old != null && old.file() != null)
+      old.file().unlinked();
     td.put(tf, target);
     
     return null;
@@ -245,6 +333,10 @@ public class TempFileSystem extends FileSystem {
     if (f.dir() != null)
       return eisdir;
     d.remove(name);
+    // free the pages once closed
+    Reg r = f.file();
+    if (r != null)
+      r.unlinked();
     return null;
   }
   
@@ -261,11 +353,11 @@ public class TempFileSystem extends FileSystem {
     // statfs=0 (Success)
     // type=ef53 bs=4096 b=2168283 bf=1088671 ba=978526
     // tf=1103232 ff=938283 nl=255
-    Runtime r = Runtime.getRuntime();
+    // the memory budget, though pages over it are spilled rather than refused
     StatFS st = new StatFS();
-    st.bavail = (int) (r.freeMemory() / 1024);
+    st.bavail = (int) (Math.max(0, store.budget() - store.used()) / 1024);
     st.bfree = st.bavail;
-    st.blocks = (int) (r.totalMemory() / 1024);
+    st.blocks = (int) (store.budget() / 1024);
     st.bsize = 1024;
     st.files = File.getInodes();
     st.ffree = 1024 - st.files;
@@ -25,7 +25,7 @@ class TempRegFD extends RegFileDesc {
   }
   
   protected void closeImp() {
-    // yawn
+    file.close();
   }
   
   public int getsize() {
@@ -49,14 +49,9 @@ class TempRegFD extends RegFileDesc {
   }
   
   public int read(byte[] buf, int off, int len) {
-    for (int n = 0; n < len; n++) {
-      int b = file.get(pos);
-      if (b < 0)
-        return n;
-      buf[off + n] = (byte) b;
-      pos++;
-    }
-    return len;
+    int n = file.read(pos, buf, off, len);
+    pos += n;
+    return n;
   }
   
   public void write(byte b) throws IOException {
@@ -69,6 +64,16 @@ class TempRegFD extends RegFileDesc {
       throw new IOException("virtual file overflow");
   }
   
+  public void write(byte[] buf, int off, int len) throws IOException {
+    if (!writeable)
+      throw new IOException("virtual file not writeable");
+    
+    int n = file.write(pos, buf, off, len);
+    pos += n;
+    if (n < len)
+      throw new IOException("virtual file overflow");
+  }
+  
   public boolean writeable() {
     return writeable;
   }
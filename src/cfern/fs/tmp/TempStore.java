@@ -0,0 +1,246 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.fs.tmp;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import cfern.Driver;
+import cfern.mem.Pages;
+import cfern.mem.Pages.Page;
+
+/**
+ * Keeps the file pages of a temp file system within a memory budget. When
+ * there are too many resident pages, the least recently used (by the clock
+ * algorithm) are written to a spill file and read back when next accessed.
+ *
+ * Lock order: a page slot may be locked before the store, but the store is
+ * never held while locking a slot. Pages are spilled and read back in under
+ * the write lock of their slot.
+ */
+final class TempStore {
+  
+  /**
+   * Most resident pages
+   */
+  private final int maxpages;
+  
+  /**
+   * Resident pages
+   */
+  private final AtomicInteger resident = new AtomicInteger();
+  
+  /**
+   * Resident pages in clock order (and dropped pages not yet swept, which
+   * are not queued), and the clock hand
+   */
+  private final List<SparseReg.Slot> ring = new ArrayList<SparseReg.Slot>();
+  private int hand;
+  
+  /**
+   * The spill file, created on first spill, its length, and free offsets in
+   * it
+   */
+  private FileChannel spillch;
+  private long spillend;
+  private final List<Long> spillfree = new ArrayList<Long>();
+  
+  /**
+   * Pages written to and read back from the spill file
+   */
+  private long spills, loads;
+  
+  /**
+   * Create a store for the given budget in bytes
+   */
+  TempStore(long budget) {
+    this.maxpages = (int) Math.min(Integer.MAX_VALUE, Math.max(1, budget / Pages.size));
+  }
+  
+  /**
+   * Budget in bytes
+   */
+  long budget() {
+    return (long) maxpages * Pages.size;
+  }
+  
+  /**
+   * Bytes of resident pages
+   */
+  long used() {
+    return (long) resident.get() * Pages.size;
+  }
+  
+  /**
+   * Count a newly resident page
+   */
+  void admit(SparseReg.Slot s) {
+    synchronized (this) {
+      if (s.queued)
+        return;
+      s.queued = true;
+      ring.add(s);
+    }
+    resident.incrementAndGet();
+  }
+  
+  /**
+   * Spill pages until within budget. Must not hold any slot lock.
+   */
+  void trim() {
+    while (resident.get() > maxpages) {
+      SparseReg.Slot s = pick();
+      if (s == null || !spill(s))
+        return;
+    }
+  }
+  
+  /**
+   * Take the next unused page off the clock, clearing used bits on the way
+   */
+  private synchronized SparseReg.Slot pick() {
+    for (int n = 2 * ring.size(); n >= 0; n--) {
+      if (ring.isEmpty())
+        return null;
+      if (hand >= ring.size())
+        hand = 0;
+      SparseReg.Slot s = ring.get(hand);
+      if (!s.queued) {
+        // dropped, sweep it away
+        remove(hand);
+        continue;
+      }
+      if (s.used) {
+        s.used = false;
+        hand++;
+        continue;
+      }
+      remove(hand);
+      s.queued = false;
+      resident.decrementAndGet();
+      return s;
+    }
+    return null;
+  }
+  
+  /**
+   * Take the page at i off the clock, moving the last page into the gap
+   */
+  private void remove(int i) {
+    SparseReg.Slot last = ring.remove(ring.size() - 1);
+    if (i < ring.size())
+      ring.set(i, last);
+  }
+  
+  /**
+   * Forget a page dropped by its file, resident or spilled. Must hold the
+   * write lock of the slot.
+   */
+  void drop(SparseReg.Slot s) {
+    synchronized (this) {
+      if (s.spill >= 0)
+        spillfree.add(Long.valueOf(s.spill));
+      if (!s.queued)
+        return;
+      // left on the clock to be swept
+      s.queued = false;
+    }
+    resident.decrementAndGet();
+  }
+  
+  /**
+   * Write a page to the spill file and drop it. Returns false if it could not
+   * be written.
+   */
+  private boolean spill(SparseReg.Slot s) {
+    s.lock.writeLock().lock();
+    try {
+      Page page = s.page;
+      if (page == null || s.dropped)
+        // dropped by truncate
+        return true;
+      long off;
+      try {
+        off = write(page.data);
+      } catch (IOException e) {
+        Driver.opt().warn("TempStore: could not spill page: %s", e);
+        admit(s);
+        return false;
+      }
+      s.page = null;
+      s.spill = off;
+      Pages.free(page);
+    } finally {
+      s.lock.writeLock().unlock();
+    }
+    return true;
+  }
+  
+  /**
+   * Read a spilled page back in and make it resident. Must hold the write lock
+   * of the slot.
+   */
+  Page load(SparseReg.Slot s) {
+    Page page = Pages.alloc();
+    try {
+      ByteBuffer buf = ByteBuffer.wrap(page.data);
+      while (buf.hasRemaining())
+        if (spillch.read(buf, s.spill + buf.position()) < 0)
+          throw new EOFException("spill file truncated");
+    } catch (IOException e) {
+      Pages.free(page);
+      throw new RuntimeException("could not read spilled page", e);
+    }
+    release(s.spill);
+    s.spill = -1;
+    s.page = page;
+    s.used = true;
+    admit(s);
+    synchronized (this) {
+      loads++;
+    }
+    return page;
+  }
+  
+  /**
+   * Write a page to a free place in the spill file, returns the offset
+   */
+  private long write(byte[] data) throws IOException {
+    long off;
+    synchronized (this) {
+      if (spillch == null) {
+        java.io.File f = java.io.File.createTempFile("cfern", ".tmpfs");
+        f.deleteOnExit();
+        spillch = new RandomAccessFile(f, "rw").getChannel();
+        Driver.opt().info("TempStore: spilling to %s", f);
+      }
+      off = spillfree.isEmpty() ? (spillend += Pages.size) - Pages.size : spillfree.remove(spillfree.size() - 1).longValue();
+      spills++;
+    }
+    ByteBuffer buf = ByteBuffer.wrap(data);
+    while (buf.hasRemaining())
+      spillch.write(buf, off + buf.position());
+    return off;
+  }
+  
+  /**
+   * Free a place in the spill file
+   */
+  synchronized void release(long off) {
+    spillfree.add(Long.valueOf(off));
+  }
+  
+  /**
+   * Describe the store
+   */
+  public synchronized String toString() {
+    return String.format("TempStore[resident=%d/%d pages spilled=%d spills=%d loads=%d]", 
+        resident.get(), maxpages, spillend / Pages.size - spillfree.size(), spills, loads);
+  }
+  
+}
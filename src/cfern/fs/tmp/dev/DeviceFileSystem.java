@@ -134,6 +134,13 @@ public class DeviceFileSystem extends TempFileSystem implements TerminalListener
     root.put(tty.getname(), new Channel(4, 2, tty));
   }
   
+  /**
+   * Terminals add devices at any time, so do not let the VFS cache lookups
+   */
+  public long cachetime() {
+    return 0;
+  }
+  
   public String getShortName() {
     return name;
   }
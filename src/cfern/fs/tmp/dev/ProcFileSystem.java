@@ -7,6 +7,7 @@ package cfern.fs.tmp.dev;
 import java.io.InputStream;
 import java.util.*;
 
+import cfern.cpu.SyscallStats;
 import cfern.fs.*;
 import cfern.io.*;
 import cfern.fs.tmp.*;
@@ -56,6 +57,13 @@ public class ProcFileSystem extends TempFileSystem {
       }
     });
     
+    // syscall counts and latencies of all processes
+    root.getdir("cfern", true).put("stats", new Stream(0, 0) {
+      protected InputStream in() {
+        return InputStreamUtil.streamFor(SyscallStats.total().string());
+      }
+    });
+    
   }
   
   public String getShortName() {
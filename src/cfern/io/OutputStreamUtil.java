@@ -24,6 +24,9 @@ public final class OutputStreamUtil {
     public void write(int b) {
       // discard
     }
+    public void write(byte[] b, int off, int len) {
+      // discard
+    }
   };
 
   /**
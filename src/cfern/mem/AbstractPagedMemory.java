@@ -0,0 +1,528 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import cfern.Driver;
+import cfern.fs.FileDesc;
+
+/**
+ * A shared paged memory. Keeps the page table, copy on write sharing, file
+ * mappings, code watches and write TLB for pages of type P from a PagePool,
+ * whose content is D (e.g. a byte array). Subclasses load and store the
+ * content.
+ * 0-4 mb: unmapped. 
+ * 4-256mb: program. 
+ * 256mb: data section
+ * 384mb: stack (grows down)
+ * 384mb: mmap blocks.
+ * 512mb: top.
+ */
+abstract class AbstractPagedMemory<P extends PagePool.Ref, D> extends Memory {
+
+	/**
+	 * Initial stack pointer, 384mb.
+	 */
+	private static final int stack = 0x18000000;
+
+	/**
+	 * Bytes in a page, 64k.
+	 */
+	static final int pagesize = 0x10000;
+
+	/**
+	 * Number of pages, 8k
+	 */
+	static final int numpages = 8192;
+
+	/**
+	 * Number of entries in the software TLB, must be a power of 2
+	 */
+	static final int tlbsize = 16;
+
+	/**
+	 * Where the pages come from
+	 */
+	private final PagePool<P> pool;
+
+	/**
+	 * 8192 pages of 65536 bytes = 512mb mem
+	 */
+	private final P[] pages;
+
+	/**
+	 * The content of each page for loads, null if the page is not mapped or
+	 * not yet loaded from its file mapping. Always the content of the page in
+	 * the page table otherwise.
+	 */
+	protected final D[] data;
+
+	/**
+	 * Pages that code has been decoded from, see watch()
+	 */
+	private final boolean[] watched = new boolean[numpages];
+
+	/**
+	 * File mappings of pages, see map(). The page is null until it is first
+	 * touched and copied in from the file.
+	 */
+	private final Mapping[] mapped = new Mapping[numpages];
+
+	/**
+	 * Pages of shared file mappings written by this memory since they were
+	 * last written back. Not copied by fork, so only the writer of a page
+	 * writes it back.
+	 */
+	private final boolean[] dirty = new boolean[numpages];
+
+	/**
+	 * Software TLB of recently written pages, direct mapped on a hash of the
+	 * page number (text, data, stack and mmap pages all have low bits 0). An
+	 * entry is valid if its tag is the page number (-1 for none). It is only
+	 * filled for a page that is private and not watched, so stores that hit
+	 * can skip those checks. Loads use data directly, which is quicker than
+	 * checking a tag.
+	 */
+	protected final int[] wtags = new int[tlbsize];
+	protected final D[] wpages;
+
+	/**
+	 * Create a paged memory with no regions. The arrays must have numpages
+	 * and tlbsize entries.
+	 */
+	protected AbstractPagedMemory(PagePool<P> pool, D[] data, D[] wpages) {
+		super();
+		this.pool = pool;
+		this.pages = pool.array(numpages);
+		this.data = data;
+		this.wpages = wpages;
+		// don't create stack until clear() is called before loading elf
+		flush();
+	}
+
+	/**
+	 * share all pages when copying
+	 */
+	protected AbstractPagedMemory(AbstractPagedMemory<P, D> other, D[] data, D[] wpages) {
+		super(other);
+		this.pool = other.pool;
+		this.pages = pool.array(numpages);
+		this.data = data;
+		this.wpages = wpages;
+		flush();
+		// other pages are about to be shared
+		other.flush();
+		for (int n = 0; n < numpages; n++) {
+			P page = other.pages[n];
+			if (page != null) {
+				pool.share(page);
+				// not setpage, the subclass is not constructed yet
+				pages[n] = page;
+				data[n] = other.data[n];
+			}
+			mapped[n] = other.mapped[n];
+		}
+	}
+
+	/**
+	 * Get the content of a page
+	 */
+	protected abstract D data(P page);
+
+	/**
+	 * Copy the mapped bytes for the page at address a into its content
+	 */
+	protected abstract void load(Mapping m, int a, D mem);
+
+	/**
+	 * Copy the content of the page at address a back into the mapping
+	 */
+	protected abstract void store(Mapping m, int a, D mem);
+
+	/**
+	 * Set len bytes of the content from offset o to b
+	 */
+	protected abstract void fill(D mem, int o, int len, byte b);
+
+	/**
+	 * Get a buffer viewing len bytes of the content from offset o
+	 */
+	protected abstract ByteBuffer wrap(D mem, int o, int len);
+
+	/**
+	 * Get a shared page of read only text from a cache, or null to load it
+	 * as for other mappings (the default)
+	 */
+	protected P text(Mapping m, int a) {
+		return null;
+	}
+
+	/**
+	 * Called when page p is put in or taken out of the page table, e.g. to
+	 * drop anything cached for it. Does nothing by default.
+	 */
+	protected void changed(int p) {
+		// nothing cached
+	}
+
+	/**
+	 * Create memory regions for the given addresses. New pages are mapped to
+	 * the zero page until written, apart from the first page of a mmap,
+	 * which records the number of pages.
+	 * Used when loading elf files.
+	 * TODO should allocate somewhere new for fixed mappings already mapped (ref. the DIRECT flag to mmap)
+	 */
+	public int alloc(int addr, int size) {
+		if (addr < pagesize)
+			return alloc(size);
+
+		int startp = addr >> 16;
+		int endp = (addr + size - 1) >> 16;
+		int nump = endp - startp;
+
+		if (addr > stack)
+			Driver.opt().elflog("%s: fixed alloc of mmap pages %d to %d", getClass().getSimpleName(), startp, endp); 
+
+		for (int p = startp; p <= endp; p++) {
+			if (pages[p] == null)
+				setpage(p, pool.zero());
+			if (addr > stack && p == startp) {
+				// the count goes in a private page
+				if (pool.isShared(pages[p]))
+					copypage(p);
+				pool.setAux(pages[p], nump);
+			}
+		}
+		return addr;
+	}
+
+	/**
+	 * Allocate upper memory for mmap
+	 */
+	private int alloc(int size) {
+		int sizep = (size / pagesize) + ((size % pagesize) > 0 ? 1 : 0);
+		//System.err.printf("# alloc %d bytes (%d pages)\n", size, sizep);
+		if (sizep > 100)
+			throw new RuntimeException("cannot alloc " + sizep + " pages");
+		int startp = freepages(sizep);
+		setpage(startp, pool.alloc());
+		for (int n = 1; n < sizep; n++)
+			setpage(startp + n, pool.zero());
+		pool.setAux(pages[startp], sizep);
+		//System.err.printf("# allocated %d pages at %s\n", sizep, getname(startp << 16));
+		return startp << 16;
+	}
+
+	/**
+	 * Find sizep unused pages in upper memory, return the first page
+	 */
+	private int freepages(int sizep) {
+		// starting page of alloc
+		int startp = -1;
+		for (int p = stack >>> 16; p < numpages; p++) {
+			if (pages[p] != null || mapped[p] != null) {
+				startp = -1;
+				continue;
+			}
+			if (startp == -1)
+				startp = p;
+			if ((p - startp + 1) == sizep)
+				return startp;
+		}
+		throw new RuntimeException("could not find " + sizep + " free pages");
+	}
+
+	/**
+	 * Map a file into upper memory. If the file has a file channel, nothing is
+	 * read until a page is touched, otherwise it is read in as for Memory.
+	 */
+	public int map(FileDesc file, int off, int len, boolean share) {
+		int sizep = (len / pagesize) + ((len % pagesize) > 0 ? 1 : 0);
+		int startp = freepages(sizep);
+		Mapping m = Mapping.make(file, startp << 16, off, len, share);
+		if (m == null)
+			return super.map(file, off, len, share);
+		for (int n = 0; n < sizep; n++)
+			mapped[startp + n] = m;
+		return startp << 16;
+	}
+
+	/**
+	 * Map part of a file at an allocated address, e.g. an elf segment. Pages
+	 * that have not been touched yet are loaded when they are first touched,
+	 * the others are loaded now.
+	 */
+	public void map(FileDesc file, int off, int addr, int len, boolean text) {
+		Mapping m = Mapping.make(file, addr, off, len, false, text);
+		if (m == null) {
+			super.map(file, off, addr, len, text);
+			return;
+		}
+		int endp = (addr + len - 1) >>> 16;
+		for (int p = addr >>> 16; p <= endp && len > 0; p++) {
+			P page = pages[p];
+			if (page != null && pool.isZero(page) && mapped[p] == null) {
+				setpage(p, null);
+				mapped[p] = m;
+			} else {
+				load(m, p << 16, writepage(p << 16));
+			}
+		}
+		flush();
+	}
+
+	/**
+	 * Write changes to a shared file mapping in the given range back to the
+	 * file
+	 */
+	public void sync(int a, int len) {
+		int p = a >>> 16, endp = (a + len - 1) >>> 16;
+		Mapping m = p < numpages ? mapped[p] : null;
+		if (m == null)
+			return;
+		// the next store to a page written back must mark it dirty again
+		flush();
+		for (; p <= endp && p < numpages && mapped[p] == m; p++) {
+			if (dirty[p]) {
+				store(m, p << 16, data[p]);
+				dirty[p] = false;
+			}
+		}
+		m.force();
+	}
+
+	/**
+	 * Write back and drop all pages of a file mapping
+	 */
+	private void unmap(Mapping m) {
+		flush();
+		for (int p = m.addr >>> 16; p < numpages && mapped[p] == m; p++) {
+			mapped[p] = null;
+			P page = pages[p];
+			if (page != null) {
+				if (watched[p])
+					unwatch(p);
+				if (dirty[p])
+					store(m, p << 16, data[p]);
+				dirty[p] = false;
+				pool.free(page);
+				setpage(p, null);
+			}
+		}
+		m.force();
+	}
+
+	/**
+	 * Copy in the page at address a from its file mapping, or share it from
+	 * the text cache
+	 */
+	private P fault(int a) {
+		int p = a >>> 16;
+		Mapping m = p < numpages ? mapped[p] : null;
+		if (m == null)
+			throw new SegFault(a, null);
+		P page = m.key != null ? text(m, p << 16) : null;
+		if (page == null) {
+			page = pool.alloc();
+			load(m, p << 16, data(page));
+		}
+		setpage(p, page);
+		return page;
+	}
+
+	/**
+	 * Drop all pages (used during execve and at exit)
+	 */
+	public void clear() {
+		flush();
+		for (int n = 0; n < numpages; n++)
+			if (mapped[n] != null)
+				unmap(mapped[n]);
+		for (int n = 0; n < numpages; n++) {
+			P page = pages[n];
+			if (page != null) {
+				if (watched[n])
+					unwatch(n);
+				pool.free(page);
+				setpage(n, null);
+			}
+		}
+	}
+
+	/**
+	 * Inital stack pointer, 384mb
+	 */
+	public int stack() {
+		return stack;
+	}
+
+	/**
+	 * unshare a page
+	 */
+	private D copypage(int p) {
+		P page = pool.unshare(pages[p]);
+		setpage(p, page);
+		return data[p];
+	}
+
+	/**
+	 * Put a page in the page table, or take it out if page is null
+	 */
+	private void setpage(int p, P page) {
+		pages[p] = page;
+		data[p] = page != null ? data(page) : null;
+		changed(p);
+	}
+
+	/**
+	 * TLB index for page p
+	 */
+	protected static int tlbindex(int p) {
+		return (p ^ (p >>> 4)) & (tlbsize - 1);
+	}
+
+	/**
+	 * Drop all TLB entries
+	 */
+	private void flush() {
+		Arrays.fill(wtags, -1);
+		Arrays.fill(wpages, null);
+	}
+
+	/**
+	 * Get the page for reading at address a, loading it from its file mapping
+	 * if it is not loaded yet
+	 */
+	protected final D readpage(int a) {
+		int p = a >>> 16;
+		D mem = p < numpages ? data[p] : null;
+		return mem != null ? mem : data(fault(a));
+	}
+
+	/**
+	 * Get the page for writing at address a, copying it if shared, and put it
+	 * in the TLB
+	 */
+	protected final D writepage(int a) {
+		int p = a >>> 16;
+		P page = p < numpages ? pages[p] : null;
+		if (page == null)
+			page = fault(a);
+		D mem = pool.isShared(page) ? copypage(p) : data[p];
+		if (watched[p])
+			unwatch(p);
+		if (mapped[p] != null && mapped[p].share)
+			dirty[p] = true;
+		int i = tlbindex(p);
+		wtags[i] = p;
+		wpages[i] = mem;
+		return mem;
+	}
+
+	/**
+	 * Free a mmap memory block, writing it back if it is a shared file mapping
+	 */
+	public void free(int a) {
+		flush();
+		int p = a >>> 16;
+		if (mapped[p] != null) {
+			unmap(mapped[p]);
+			return;
+		}
+		int sizep = pool.getAux(pages[p]);
+		if (sizep == 0)
+			throw new RuntimeException("page " + p + " freed but was not allocated");
+		for (int n = 0; n < sizep; n++) {
+			if (watched[p + n])
+				unwatch(p + n);
+			pool.free(pages[p + n]);
+			setpage(p + n, null);
+		}
+	}
+
+	public void watch(int a) {
+		int p = a >>> 16;
+		watched[p] = true;
+		// make the next store check the watch
+		int i = tlbindex(p);
+		if (wtags[i] == p) {
+			wtags[i] = -1;
+			wpages[i] = null;
+		}
+	}
+
+	/**
+	 * Stop watching a page and tell the code listener it has changed
+	 */
+	private void unwatch(int p) {
+		watched[p] = false;
+		codeChanged(p << 16, pagesize);
+	}
+
+	public boolean bound(int a) {
+		int p = a >> 16;
+		// is negative for addresses over 2gb
+		return p >= 0 && p < numpages && (pages[p] != null || mapped[p] != null);
+	}
+
+	/**
+	 * Get buffers viewing the content of each page in the range
+	 */
+	public ByteBuffer[] buffers(int addr, int len, boolean write) {
+		int nump = len <= 0 ? 0 : ((addr + len - 1) >>> 16) - (addr >>> 16) + 1;
+		ByteBuffer[] bufs = new ByteBuffer[nump];
+		for (int n = 0; n < nump; n++) {
+			if (write && n > 0 && !bound(addr))
+				// short read rather than a fault
+				return Arrays.copyOf(bufs, n);
+			int o = addr & 0xffff, l = Math.min(len, pagesize - o);
+			bufs[n] = wrap(write ? writepage(addr) : readpage(addr), o, l);
+			addr += l;
+			len -= l;
+		}
+		return bufs;
+	}
+
+	/**
+	 * Set len bytes to b a page at a time. Zero pages are left alone if b is
+	 * 0, e.g. for the bss.
+	 */
+	public int memset(int from, byte b, int len) {
+		int a = from, end = from + len;
+		while (a < end) {
+			int o = a & 0xffff, n = Math.min(end - a, pagesize - o);
+			int p = a >>> 16;
+			if (b != 0 || p >= numpages || !pool.isZero(pages[p]))
+				fill(writepage(a), o, n, b);
+			a += n;
+		}
+		return from;
+	}
+
+	/**
+	 * Return a list of mapped pages
+	 */
+	public String toString() {
+		StringBuilder sb = new StringBuilder(super.toString()).append("\n");
+		int nump = 0;
+		for (int p = 0; p < numpages; p++) {
+			P page = pages[p];
+			if (page != null) {
+				boolean sh = pool.isShared(page);
+				int al = pool.getAux(page);
+				sb.append(String.format("%4x: share: %s alloc: %d%s%s\n", p, sh, al, pool.isZero(page) ? " zero" : "", mapped[p] != null ? " mapped" : ""));
+				nump++;
+			} else if (mapped[p] != null) {
+				sb.append(String.format("%4x: not loaded from %s\n", p, mapped[p]));
+			}
+		}
+		sb.append(String.format("Total: %d pages\n", nump));
+		sb.append(pool.string()).append("\n");
+		return sb.toString();
+	}
+
+} // end of class AbstractPagedMemory
@@ -0,0 +1,20 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+
+/**
+ * Interface for receiving notice that memory holding translated code has
+ * changed (see Memory.watch).
+ */
+public interface CodeListener {
+
+  /**
+   * The given region was written to, freed or cleared, so any code decoded
+   * from it must be discarded.
+   */
+  public void codeChanged (int addr, int len);
+
+}
@@ -0,0 +1,223 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A shared paged memory with pages off the Java heap, so the heap does not
+ * grow with the guest memory of every process. Same layout, copy on write
+ * sharing and file mappings as PagedMemory. Pages are big endian direct
+ * buffers, so words are single accesses.
+ */
+final class DirectPagedMemory extends AbstractPagedMemory<DirectPagedMemory.Page, ByteBuffer> {
+
+	/**
+	 * Pages per arena chunk (4mb)
+	 */
+	private static final int chunkpages = 64;
+
+	/**
+	 * A page, a 64k slice of a direct buffer chunk. Its position and limit
+	 * are never changed, use duplicate() for relative access.
+	 */
+	static final class Page extends PagePool.Ref {
+		final ByteBuffer buf;
+		Page(ByteBuffer buf) {
+			this.buf = buf;
+		}
+	}
+
+	/**
+	 * The current chunk new pages are sliced from, and the next page in it
+	 */
+	private static ByteBuffer chunk;
+	private static int chunkpage = chunkpages;
+
+	/**
+	 * Zeros for clearing reused pages
+	 */
+	private static final ByteBuffer zeros = ByteBuffer.allocateDirect(pagesize);
+
+	/**
+	 * The direct pages. A chunk is only returned to the system once all of
+	 * its pages have been dropped by the pool.
+	 */
+	static final PagePool<Page> pool = new PagePool<Page>("direct pages", new Page(ByteBuffer.allocateDirect(pagesize))) {
+		protected Page create() {
+			return slice();
+		}
+		protected void clear(Page page) {
+			page.buf.duplicate().put(zeros.duplicate());
+		}
+		protected void copy(Page from, Page to) {
+			// duplicate as the old page may be read by other threads
+			to.buf.duplicate().put(from.buf.duplicate());
+		}
+		Page[] array(int n) {
+			return new Page[n];
+		}
+	};
+
+	/**
+	 * Slice a new page from the current chunk, allocating a new chunk if it
+	 * is used up
+	 */
+	private static synchronized Page slice() {
+		if (chunkpage == chunkpages) {
+			chunk = ByteBuffer.allocateDirect(pagesize * chunkpages);
+			chunkpage = 0;
+		}
+		ByteBuffer b = chunk.duplicate();
+		b.limit((chunkpage + 1) * pagesize).position(chunkpage * pagesize);
+		chunkpage++;
+		return new Page(b.slice());
+	}
+
+	/**
+	 * Create a direct paged memory with no regions.
+	 */
+	protected DirectPagedMemory() {
+		super(pool, new ByteBuffer[numpages], new ByteBuffer[tlbsize]);
+	}
+
+	/**
+	 * share all pages when copying
+	 */
+	private DirectPagedMemory(DirectPagedMemory other) {
+		super(other, new ByteBuffer[numpages], new ByteBuffer[tlbsize]);
+	}
+
+	public Memory copy() {
+		return new DirectPagedMemory(this);
+	}
+
+	protected ByteBuffer data(Page page) {
+		return page.buf;
+	}
+
+	/**
+	 * Copy the mapped bytes into the page through a byte array
+	 */
+	protected void load(Mapping m, int a, ByteBuffer mem) {
+		byte[] buf = new byte[pagesize];
+		mem.duplicate().get(buf);
+		m.load(a, buf);
+		mem.duplicate().put(buf);
+	}
+
+	protected void store(Mapping m, int a, ByteBuffer mem) {
+		byte[] buf = new byte[pagesize];
+		mem.duplicate().get(buf);
+		m.store(a, buf);
+	}
+
+	protected void fill(ByteBuffer mem, int o, int len, byte b) {
+		for (int e = o + len; o < e; o++)
+			mem.put(o, b);
+	}
+
+	protected ByteBuffer wrap(ByteBuffer mem, int o, int len) {
+		ByteBuffer buf = mem.duplicate();
+		buf.limit(o + len).position(o);
+		return buf;
+	}
+
+	public final int load_word(int a) {
+		try {
+			ByteBuffer mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a)).getInt(a & 0xffff);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_word(int a, int x) {
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			(wtags[i] == p ? wpages[i] : writepage(a)).putInt(a & 0xffff, x);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final short load_half(int a) {
+		try {
+			ByteBuffer mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a)).getShort(a & 0xffff);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_half(int a, short x) {
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			(wtags[i] == p ? wpages[i] : writepage(a)).putShort(a & 0xffff, x);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final byte load_byte(int a) {
+		try {
+			ByteBuffer mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a)).get(a & 0xffff);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_byte(int a, byte x) {
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			(wtags[i] == p ? wpages[i] : writepage(a)).put(a & 0xffff, x);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	/**
+	 * Load a double word, in one access if it is in one page
+	 */
+	public final long load_dword(int a) {
+		if ((a & 0xffff) > pagesize - 8)
+			return super.load_dword(a);
+		try {
+			ByteBuffer mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a)).getLong(a & 0xffff);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	/**
+	 * Store a series of bytes at virtual address a, a page at a time
+	 */
+	public void store_bytes(int addr, byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			int n = Math.min(end - off, pagesize - (addr & 0xffff));
+			wrap(writepage(addr), addr & 0xffff, n).put(buf, off, n);
+			off += n;
+			addr += n;
+		}
+	}
+
+	/**
+	 * Load a series of bytes from virtual address a, a page at a time
+	 */
+	public void load_bytes(int addr, byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			int n = Math.min(end - off, pagesize - (addr & 0xffff));
+			wrap(readpage(addr), addr & 0xffff, n).get(buf, off, n);
+			off += n;
+			addr += n;
+		}
+	}
+
+} // end of class DirectPagedMemory
@@ -0,0 +1,228 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A shared paged int memory. Same layout, copy on write sharing and file
+ * mappings as PagedMemory, but pages are int arrays holding big endian words,
+ * so an aligned word load or store is a single array access. Byte and
+ * halfword accesses shift and mask the word instead, and unaligned words fall
+ * back to bytes.
+ */
+final class IntPagedMemory extends AbstractPagedMemory<IntPagedMemory.Page, int[]> {
+
+	/**
+	 * A page of 16k words
+	 */
+	static final class Page extends PagePool.Ref {
+		final int[] data = new int[pagesize >>> 2];
+	}
+
+	/**
+	 * The int pages
+	 */
+	static final PagePool<Page> pool = new PagePool<Page>("int pages", new Page()) {
+		protected Page create() {
+			return new Page();
+		}
+		protected void clear(Page page) {
+			Arrays.fill(page.data, 0);
+		}
+		protected void copy(Page from, Page to) {
+			System.arraycopy(from.data, 0, to.data, 0, from.data.length);
+		}
+		Page[] array(int n) {
+			return new Page[n];
+		}
+	};
+
+	/**
+	 * Create a paged int memory with no regions.
+	 */
+	protected IntPagedMemory() {
+		super(pool, new int[numpages][], new int[tlbsize][]);
+	}
+
+	/**
+	 * share all pages when copying
+	 */
+	private IntPagedMemory(IntPagedMemory other) {
+		super(other, new int[numpages][], new int[tlbsize][]);
+	}
+
+	public Memory copy() {
+		return new IntPagedMemory(this);
+	}
+
+	protected int[] data(Page page) {
+		return page.data;
+	}
+
+	/**
+	 * Copy the mapped bytes into the page through a byte array
+	 */
+	protected void load(Mapping m, int a, int[] mem) {
+		ByteBuffer buf = ByteBuffer.allocate(pagesize);
+		buf.asIntBuffer().put(mem);
+		m.load(a, buf.array());
+		buf.asIntBuffer().get(mem);
+	}
+
+	protected void store(Mapping m, int a, int[] mem) {
+		ByteBuffer buf = ByteBuffer.allocate(pagesize);
+		buf.asIntBuffer().put(mem);
+		m.store(a, buf.array());
+	}
+
+	protected void fill(int[] mem, int o, int len, byte b) {
+		int e = o + len;
+		for (; o < e && (o & 3) != 0; o++)
+			storebyte(mem, o, b);
+		int w = (b & 0xff) * 0x01010101;
+		if (o + 4 <= e)
+			Arrays.fill(mem, o >>> 2, (e & ~3) >>> 2, w);
+		for (o = Math.max(o, e & ~3); o < e; o++)
+			storebyte(mem, o, b);
+	}
+
+	/**
+	 * Not used, see buffers()
+	 */
+	protected ByteBuffer wrap(int[] mem, int o, int len) {
+		return null;
+	}
+
+	/**
+	 * Returns null as int pages cannot be viewed as big endian bytes
+	 */
+	public ByteBuffer[] buffers(int addr, int len, boolean write) {
+		return null;
+	}
+
+	public final int load_word(int a) {
+		if ((a & 3) != 0)
+			return (load_half(a) << 16) | (load_half(a + 2) & 0xffff);
+		try {
+			int[] mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a))[(a & 0xffff) >>> 2];
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_word(int a, int x) {
+		if ((a & 3) != 0) {
+			store_half(a, (short) (x >> 16));
+			store_half(a + 2, (short) x);
+			return;
+		}
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			(wtags[i] == p ? wpages[i] : writepage(a))[(a & 0xffff) >>> 2] = x;
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final short load_half(int a) {
+		if ((a & 3) == 3)
+			return (short) ((load_byte(a) << 8) | (load_byte(a + 1) & 0xff));
+		try {
+			int[] mem = data[a >>> 16];
+			if (mem == null)
+				mem = readpage(a);
+			// shift 16 for the first half of the word, 8 or 0 otherwise
+			return (short) (mem[(a & 0xffff) >>> 2] >> ((2 - (a & 3)) << 3));
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_half(int a, short x) {
+		if ((a & 3) == 3) {
+			store_byte(a, (byte) (x >> 8));
+			store_byte(a + 1, (byte) x);
+			return;
+		}
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			int[] mem = wtags[i] == p ? wpages[i] : writepage(a);
+			int w = (a & 0xffff) >>> 2, s = (2 - (a & 3)) << 3;
+			mem[w] = (mem[w] & ~(0xffff << s)) | ((x & 0xffff) << s);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final byte load_byte(int a) {
+		try {
+			int[] mem = data[a >>> 16];
+			if (mem == null)
+				mem = readpage(a);
+			return (byte) (mem[(a & 0xffff) >>> 2] >> ((~a & 3) << 3));
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	public final void store_byte(int a, byte x) {
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			storebyte(wtags[i] == p ? wpages[i] : writepage(a), a & 0xffff, x);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	/**
+	 * Store a series of bytes at virtual address a, a page at a time
+	 */
+	public void store_bytes(int addr, byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			int[] mem = writepage(addr);
+			// bytes left in this page
+			int n = Math.min(end - off, pagesize - (addr & 0xffff));
+			int a = addr & 0xffff, e = a + n;
+			// leading bytes up to word boundary
+			for (; a < e && (a & 3) != 0; a++)
+				storebyte(mem, a, buf[off++]);
+			// whole words
+			for (; a + 4 <= e; a += 4, off += 4)
+				mem[a >>> 2] = (buf[off] << 24) | ((buf[off + 1] & 0xff) << 16) | ((buf[off + 2] & 0xff) << 8) | (buf[off + 3] & 0xff);
+			// trailing bytes
+			for (; a < e; a++)
+				storebyte(mem, a, buf[off++]);
+			addr += n;
+		}
+	}
+
+	/**
+	 * Load a series of bytes from virtual address a, a page at a time
+	 */
+	public void load_bytes(int addr, byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			int[] mem = readpage(addr);
+			int n = Math.min(end - off, pagesize - (addr & 0xffff));
+			for (int a = addr & 0xffff, e = a + n; a < e; a++)
+				buf[off++] = (byte) (mem[a >>> 2] >> ((~a & 3) << 3));
+			addr += n;
+		}
+	}
+
+	/**
+	 * Store byte x at offset a of page mem
+	 */
+	private static void storebyte(int[] mem, int a, byte x) {
+		int w = a >>> 2, s = (~a & 3) << 3;
+		mem[w] = (mem[w] & ~(0xff << s)) | ((x & 0xff) << s);
+	}
+
+} // end of class IntPagedMemory
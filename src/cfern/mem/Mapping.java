@@ -0,0 +1,138 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+
+import cfern.Driver;
+import cfern.fs.FileDesc;
+import cfern.sys.str.Stat;
+
+/**
+ * A file mapped into memory with FileChannel.map. Memories copy pages in from
+ * the mapped buffer when they are first touched, and write the pages they
+ * changed back to it on msync or unmap if the mapping is shared. Mappings are immutable so forked
+ * memories can share them.
+ *
+ * The mapping need not start on a page boundary (e.g. an elf segment), the
+ * rest of its first and last pages are left alone. The part of the mapping
+ * beyond the end of the file reads as zero and is not written back.
+ */
+final class Mapping {
+
+  /**
+   * Address and length of the mapping in memory
+   */
+  final int addr, len;
+
+  /**
+   * Whether changes are written back to the file
+   */
+  final boolean share;
+
+  /**
+   * Identifies the file and mapping for the PageCache, or null if the pages
+   * are not read only text
+   */
+  final String key;
+
+  /**
+   * The mapped part of the file, do not change its position
+   */
+  private final MappedByteBuffer buf;
+
+  private Mapping(int addr, int len, boolean share, String key, MappedByteBuffer buf) {
+    this.addr = addr;
+    this.len = len;
+    this.share = share;
+    this.key = key;
+    this.buf = buf;
+  }
+
+  /**
+   * Map the file from offset off for len bytes at address addr, or return null
+   * if the file is not backed by a file channel
+   */
+  static Mapping make(FileDesc file, int addr, int off, int len, boolean share) {
+    return make(file, addr, off, len, share, false);
+  }
+
+  /**
+   * Map the file as above, and if text is true allow the pages to come from
+   * the PageCache. The file is identified by dev, inode, modification time and
+   * size.
+   */
+  static Mapping make(FileDesc file, int addr, int off, int len, boolean share, boolean text) {
+    FileChannel ch = file.fileChannel();
+    if (ch == null)
+      return null;
+    String key = null;
+    if (text && !share) {
+      Stat st = file.fstat();
+      key = String.format("%d:%d:%d:%d:%x:%x:%x", st.dev, st.inode, st.mtime, st.size, off, addr, len);
+    }
+    try {
+      // don't let the mapping extend the file
+      long size = Math.max(0, Math.min(len, ch.size() - off));
+      MappedByteBuffer buf = null;
+      if (share) {
+        try {
+          buf = ch.map(FileChannel.MapMode.READ_WRITE, off, size);
+        } catch (NonWritableChannelException e) {
+          // file opened read only, changes can't be written back
+          share = false;
+        }
+      }
+      if (buf == null)
+        buf = ch.map(FileChannel.MapMode.READ_ONLY, off, size);
+      Driver.opt().info("Mapping: mapped %d of %d bytes of %s at %x share=%s", size, len, file, addr, share);
+      return new Mapping(addr, len, share, key, buf);
+    } catch (IOException e) {
+      Driver.opt().warn("Mapping: could not map %s: %s", file, e);
+      return null;
+    }
+  }
+
+  /**
+   * Copy the mapped bytes for the page at address a into the page
+   */
+  void load(int a, byte[] page) {
+    // the part of the page in the mapped file
+    int from = Math.max(a, addr), to = Math.min(a + page.length, addr + buf.limit());
+    if (from < to) {
+      ByteBuffer b = buf.duplicate();
+      b.position(from - addr);
+      b.get(page, from - a, to - from);
+    }
+  }
+
+  /**
+   * Copy the page at address a back into the mapping, if shared
+   */
+  void store(int a, byte[] page) {
+    int from = Math.max(a, addr), to = Math.min(a + page.length, addr + buf.limit());
+    if (share && from < to) {
+      ByteBuffer b = buf.duplicate();
+      b.position(from - addr);
+      b.put(page, from - a, to - from);
+    }
+  }
+
+  /**
+   * Write stored changes out to the file
+   */
+  void force() {
+    if (share)
+      buf.force();
+  }
+
+  public String toString() {
+    return String.format("mapping %x-%x share=%s", addr, addr + len, share);
+  }
+
+}
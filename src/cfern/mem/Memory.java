@@ -5,6 +5,7 @@
 
 package cfern.mem;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import cfern.Driver;
 import cfern.elf.SymbolTable;
@@ -24,7 +25,7 @@ import cfern.fs.FileDesc;
  * NOTE: This class are NOT thread safe. Instances must NOT be
  * visible to more than one running thread.
  * 
- * TODO a non shared paged byte memory, and a paged int memory
+ * TODO a non shared paged byte memory
  * 
  * TODO consider splitting methods that use buf into a subclass
  * e.g. Memory -> BufferedMemory -> ByteMemory 
@@ -58,7 +59,12 @@ public abstract class Memory {
    * byte backed or a given address may soon cross a page boundary, etc).
    */
   private final byte[] buf = new byte[16384];
-  
+
+  /**
+   * Told about writes to watched pages (not copied on fork).
+   */
+  private CodeListener code;
+
   /**
    * Does nothing
    */
@@ -117,19 +123,17 @@ public abstract class Memory {
   public abstract void free(int addr);
   
   /**
-   * Create a new Memory subclass
+   * Create a new Memory subclass, an IntPagedMemory or DirectPagedMemory if
+   * the mem=int or mem=direct option is set, otherwise a PagedMemory (that
+   * shifts bytes for words if the mem=shift option is set)
    */
   public static final Memory make() {
     // should probably have a factory class in future
-    /*
-    if (Driver.pagemem)
-      return new PagedMemory();
-    else if (Driver.intmem)
-      return new IntMemory();
-    else
-      return new ByteMemory();
-    */
-    return new PagedMemory();
+    if (Driver.opt().intmem)
+      return new IntPagedMemory();
+    if (Driver.opt().directmem)
+      return new DirectPagedMemory();
+    return new PagedMemory(!Driver.opt().shiftmem);
   }
   
   /**
@@ -144,7 +148,29 @@ public abstract class Memory {
    * stack.
    */
   public abstract void clear();
-  
+
+  /**
+   * Set the listener for changes to watched pages, e.g. an instruction cache.
+   */
+  public final void setCodeListener (CodeListener code) {
+    this.code = code;
+  }
+
+  /**
+   * Watch the page containing address a, typically because code has been
+   * decoded from it. The next write to the page (or free or clear) calls the
+   * code listener and stops watching the page.
+   */
+  public abstract void watch(int a);
+
+  /**
+   * Tell the code listener (if any) that a watched region has changed
+   */
+  protected final void codeChanged (int a, int len) {
+    if (code != null)
+      code.codeChanged(a, len);
+  }
+
   /**
    * store args and env in the way glibc expect (see sysdeps/mips/elf/start.S)
    */
@@ -252,7 +278,6 @@ public abstract class Memory {
   
   /**
    * Returns the address of a symbol from the symbol table.
-   * Note: this method is slow because it does a linear search.
    */
   public int getaddress(String name) {
     return st.getaddress(name);
@@ -272,17 +297,22 @@ public abstract class Memory {
    * Never returns null.
    */
   public String getname (int a) {
+    return appendname(new StringBuilder(32), a).toString();
+  }
+  
+  /**
+   * Append the name of given address as for getname(), without creating any
+   * objects. Returns the string builder.
+   */
+  public StringBuilder appendname (StringBuilder sb, int a) {
     // TODO check addresses vector
-    if (st != null) {
-      String ret = st.getname(a);
-      if (ret != null)
-        return ret;
-    }
+    if (st != null && st.appendname(sb, a))
+      return sb;
     // check some things not in the symbol table
+    SymbolTable.appendhex(sb, a);
     if (a >= sp)
-      return String.format("%x<STACK+%x>", a, a - sp);
-
-    return Integer.toHexString(a);
+      SymbolTable.appendhex(sb.append("<STACK+"), a - sp).append('>');
+    return sb;
   }
   
   /**
@@ -441,11 +471,10 @@ public abstract class Memory {
   }
   
   /**
-   * Load a double word.
-   * Not really sure if this is correct
+   * Load a double word (big endian, high word first).
    */
   public long load_dword (int a) {
-    long m = 0xffffffff;
+    long m = 0xffffffffL;
     long d = ((load_word(a) & m) << 32) | (load_word(a + 4) & m);
     return d;
   }
@@ -512,23 +541,60 @@ public abstract class Memory {
   }
   
   /**
-   * Read from a file and write to memory.
-   * Returns number of bytes read, 0 on end of file.
+   * Get buffers that view the memory from addr to addr + len in order,
+   * typically one per page, for reading from (if write is false) or for
+   * writing to. Writable buffers are private to this memory (i.e. copy on
+   * write is done here) and stop at the first unmapped page. The buffers are
+   * only valid until the next call on this memory. Returns null if the memory
+   * cannot be viewed this way, the default.
+   */
+  public ByteBuffer[] buffers(int addr, int len, boolean write) {
+    return null;
+  }
+  
+  /**
+   * Read from a file and write to memory, directly into the memory if it
+   * has buffers(). The buffers are got a page at a time as data arrives, so
+   * a short read does not copy or unwatch the pages it did not reach.
+   * Returns number of bytes read, 0 on end of file. Throws SegFault if the
+   * first byte is not mapped.
    * FIXME should throw IOException, also needs tidying
    */
   
   public int read_from (FileDesc f, int addr, int buflen) {
+    if (buflen > 0 && !bound(addr))
+      throw new SegFault(addr, null);
     int ret = 0;
     try {
+      int first = Math.min(buflen, Pages.size - (addr & (Pages.size - 1)));
+      ByteBuffer[] bufs = buffers(addr, first, true);
+      if (bufs != null) {
+        while (ret < buflen && bufs.length > 0) {
+          long len = f.read(bufs);
+          if (len > 0)
+            ret += len;
+          // go on to the next page only if this one was filled
+          if (len <= 0 || bufs[bufs.length - 1].hasRemaining() || ret >= buflen || f.inChannel() != null || f.available() <= 0)
+            break;
+          if (!bound(addr + ret))
+            // short read rather than a fault
+            break;
+          bufs = buffers(addr + ret, Math.min(buflen - ret, Pages.size), true);
+        }
+        return ret;
+      }
+      
       int len;
-      // need to loop in case buf is too short
+      // need to loop in case buf is too short, and stop at the end of a page
+      // so a short read does not fault
       do {
-        len = f.read(buf, 0, Math.min(buf.length, buflen - ret));
+        int page = Pages.size - ((addr + ret) & (Pages.size - 1));
+        len = f.read(buf, 0, Math.min(Math.min(buf.length, buflen - ret), page));
         if (len > 0) {
           store_bytes(addr + ret, buf, 0, len);
           ret += len;
         }
-      } while (len > 0 && ret < buflen && f.inChannel() == null && f.available() > 0);
+      } while (len > 0 && ret < buflen && f.inChannel() == null && f.available() > 0 && bound(addr + ret));
     } catch (IOException e) {
       // FIXME read should return EIO
       throw new RuntimeException("error reading from " + f, e);
@@ -537,34 +603,40 @@ public abstract class Memory {
   }
   
   /**
-   * Copies a sequence of bytes from memory to the specified file
+   * Copies a sequence of bytes from memory to the specified file, directly
+   * from the memory if it has buffers(), otherwise a buffer at a time.
+   * Returns the number of bytes written, which is less than buflen if the
+   * file would block.
    */
   public int write_to(FileDesc f, int buf_p, int buflen) {
     try {
-      int i = 0;
-      for (int n = 0; n < buflen; n++) {
-        if (i == buf.length) {
-          f.write(buf, 0, buf.length);
-          i = 0;
-        }
-        // FIXME use load_bytes as it may be in the subclass
-        buf[i++] = load_byte(buf_p + n);
+      ByteBuffer[] bufs = buffers(buf_p, buflen, false);
+      if (bufs != null)
+        return (int) f.write(bufs);
+      int n = 0;
+      while (n < buflen) {
+        int len = Math.min(buf.length, buflen - n);
+        load_bytes(buf_p + n, buf, 0, len);
+        int w = (int) f.write(new ByteBuffer[] { ByteBuffer.wrap(buf, 0, len) });
+        n += w;
+        // short write, e.g. a non-blocking channel is full
+        if (w < len)
+          break;
       }
-      f.write(buf, 0, i);
+      return n;
     } catch (IOException e) {
       // FIXME write needs to return ENOSPC.. or something
       // or just number of bytes..
       throw new RuntimeException(e);
     }
-    return buflen;
   }
 
   /**
-   * Memory map a file (badly).
+   * Memory map a file by reading it all in now. Changes are not written back.
    */
   public int map(FileDesc file, int off, int len, boolean share) {
     int a = alloc(0, len);
-    Driver.opt().info("Memory: map(%s,%d,%d,...) = %s\n", file, off, len, getname(a)); 
+    Driver.opt().info("Memory: map(%s,%d,%d,...) = %s", file, off, len, getname(a)); 
     int pos = file.offset();
     file.seekset(off);
     read_from(file, a, len);
@@ -572,6 +644,27 @@ public abstract class Memory {
     return a; 
   }
 
+  /**
+   * Map len bytes of a file from offset off to address addr, which must
+   * already be allocated, e.g. an elf segment. The mapping is private, and if
+   * text is true it will not be written to (but it may be). Reads it in now
+   * by default.
+   */
+  public void map(FileDesc file, int off, int addr, int len, boolean text) {
+    int pos = file.offset();
+    file.seekset(off);
+    read_from(file, addr, len);
+    file.seekset(pos);
+  }
+
+  /**
+   * Write changes to shared file mappings in the given range back to the
+   * file. Does nothing by default, see map().
+   */
+  public void sync(int a, int len) {
+    // nothing to write back
+  }
+
   /**
    * Set len bytes to b, return from.
    */
@@ -588,6 +681,14 @@ public abstract class Memory {
     return String.format("brk=%-8x b sp=%-8x addrs=%s", brk, sp, addresses);
   }
   
+  /**
+   * Get the SegFault for an exception from an access to address a, which is
+   * the exception itself if it is one
+   */
+  protected final SegFault segfault(int a, RuntimeException e) {
+    return e instanceof SegFault ? (SegFault) e : new SegFault(a, e);
+  }
+  
   /**
    * Exception for invalid memory addresses
    */
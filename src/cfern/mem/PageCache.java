@@ -0,0 +1,76 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+import java.util.*;
+
+import cfern.mem.Pages.Page;
+
+/**
+ * A cache of pages of read only program text loaded from files, so every
+ * process running the same program shares the same pages (and execve does not
+ * read them again). The cache holds a reference to each page, and gives out
+ * another reference to callers, so the page is always shared and copied
+ * before it is written.
+ *
+ * The least recently used page is dropped when the cache is full. Memories
+ * using it keep it until they are done with it.
+ */
+final class PageCache {
+
+  /**
+   * Maximum number of pages to cache (32mb)
+   */
+  private static final int maxpages = 512;
+
+  /**
+   * Cached pages by mapping key and address, in access order
+   */
+  private static final Map<String, Page> pages = new LinkedHashMap<String, Page>(maxpages, 0.75f, true) {
+    protected boolean removeEldestEntry(Map.Entry<String, Page> e) {
+      if (size() <= maxpages)
+        return false;
+      evictions++;
+      Pages.free(e.getValue());
+      return true;
+    }
+  };
+
+  /**
+   * Count of pages found, loaded and dropped
+   */
+  private static long hits, misses, evictions;
+
+  private PageCache() {
+    // private to prevent javadoc
+  }
+
+  /**
+   * Get a reference to the page at address a of the text mapping, loading it
+   * if it is not cached.
+   */
+  static synchronized Page get(Mapping m, int a) {
+    String key = m.key + "@" + Integer.toHexString(a);
+    Page page = pages.get(key);
+    if (page != null) {
+      hits++;
+    } else {
+      misses++;
+      page = Pages.alloc();
+      m.load(a, page.data);
+      pages.put(key, page);
+    }
+    Pages.share(page);
+    return page;
+  }
+
+  /**
+   * Get a string describing the cache
+   */
+  static synchronized String string() {
+    return String.format("page cache pages=%d hits=%d misses=%d evictions=%d", pages.size(), hits, misses, evictions);
+  }
+
+}
@@ -0,0 +1,293 @@
+/**
+ * Cfern, a Mips/Unix/C emulator for Java
+ * Alexander Slack alexslack56@hotmail.com
+ */
+
+package cfern.mem;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.*;
+
+import cfern.Driver;
+
+/**
+ * A 64k page allocator for pages of type P, e.g. byte arrays (see Pages), int
+ * arrays or direct buffers. Each page has an atomic reference count and an aux
+ * value.
+ *
+ * A page with one reference is private and read/write, but must only be
+ * referenced from one thread. A page with more than one reference may be
+ * referenced from multiple threads but must be treated as read only. Use
+ * share(P) when copying a reference (e.g. for fork), unshare(P) to get a
+ * private page to write to, and free(P) to drop a reference. The last
+ * reference to go puts the page back on the free list.
+ *
+ * Untouched pages can be mapped to the zero page, which is always shared and
+ * never freed, so the first write to one gets a private page of zeros.
+ *
+ * Free pages are kept in a small magazine per thread, and full magazines are
+ * passed between threads through a bounded lock free depot, so allocation
+ * takes no locks. Freed pages are only zeroed when reused.
+ */
+abstract class PagePool<P extends PagePool.Ref> {
+
+  /**
+   * The reference count and aux value of a page, extended by each type of
+   * page
+   */
+  static class Ref {
+    /**
+     * Number of references (memories or files) to this page, 0 if free
+     */
+    volatile int refs;
+    /**
+     * Aux value, e.g. the number of mmap pages allocated from here
+     */
+    int aux;
+  }
+
+  /**
+   * Atomic access to Ref.refs without an object per page
+   */
+  private static final AtomicIntegerFieldUpdater<Ref> refs = AtomicIntegerFieldUpdater.newUpdater(Ref.class, "refs");
+
+  /**
+   * Pages per magazine, and maximum full magazines in the depot (so at most
+   * 128 free pages are kept apart from those in thread magazines)
+   */
+  private static final int magsize = 16, depotsize = 8;
+
+  /**
+   * Name of the pool for string()
+   */
+  private final String name;
+
+  /**
+   * The zero page. Its reference count is not maintained, it just looks
+   * shared.
+   */
+  private final P zero;
+
+  /**
+   * A thread's stack of free pages
+   */
+  private final class Magazine {
+    P[] pages = array(magsize);
+    int count;
+  }
+
+  /**
+   * Free pages of each thread, so alloc and free normally touch no shared
+   * state
+   */
+  private final ThreadLocal<Magazine> magazines = new ThreadLocal<Magazine>() {
+    protected Magazine initialValue() {
+      return new Magazine();
+    }
+  };
+
+  /**
+   * Full magazines given up by threads with too many free pages, and the
+   * number of them (the queue size is not constant time)
+   */
+  private final Queue<P[]> depot = new ConcurrentLinkedQueue<P[]>();
+  private final AtomicInteger depotcount = new AtomicInteger();
+
+  /**
+   * Count of new pages, reused pages, magazines taken from the depot, pages
+   * left for the garbage collector because the depot was full, copies made for
+   * writing to shared pages, and zero pages written to
+   */
+  private final AtomicLong allocated = new AtomicLong(), reused = new AtomicLong(),
+      depothits = new AtomicLong(), dropped = new AtomicLong(), copies = new AtomicLong(),
+      zerowrites = new AtomicLong();
+
+  /**
+   * Create a pool with the given zero page, which must be all zeros
+   */
+  PagePool(String name, P zero) {
+    this.name = name;
+    this.zero = zero;
+    zero.refs = 2;
+  }
+
+  /**
+   * Create a new page of zeros
+   */
+  protected abstract P create();
+
+  /**
+   * Set a reused page to zeros
+   */
+  protected abstract void clear(P page);
+
+  /**
+   * Copy the content of one page to another
+   */
+  protected abstract void copy(P from, P to);
+
+  /**
+   * Create an array of n pages
+   */
+  abstract P[] array(int n);
+
+  /**
+   * Return a new or reused private page of zeros
+   */
+  final P alloc() {
+    P ret = get();
+    if (ret == null) {
+      ret = create();
+    } else {
+      // pages are not cleared when freed, only when reused without copying
+      clear(ret);
+      ret.aux = 0;
+    }
+    ret.refs = 1;
+    return ret;
+  }
+
+  /**
+   * Return the zero page, for mapping pages that have not been written yet.
+   * It must not be written to, use unshare() as for any shared page.
+   */
+  final P zero() {
+    return zero;
+  }
+
+  /**
+   * Return true if the page is the zero page
+   */
+  final boolean isZero(P page) {
+    return page == zero;
+  }
+
+  /**
+   * Return a private page to write to in place of the given page, giving up
+   * the reference to the given page. This is the page itself if there are no
+   * other references to it, otherwise a copy.
+   */
+  final P unshare(P old) {
+    if (old.refs == 1)
+      return old;
+    if (old == zero) {
+      zerowrites.incrementAndGet();
+      return alloc();
+    }
+
+    P ret = get();
+    if (ret == null)
+      ret = create();
+    copy(old, ret);
+    ret.aux = old.aux;
+    ret.refs = 1;
+    copies.incrementAndGet();
+    // the other references may have gone while copying
+    free(old);
+    return ret;
+  }
+
+  /**
+   * Get a page from the thread's magazine, refilling it from the depot if
+   * necessary, or null if there are none
+   */
+  private P get() {
+    Magazine m = magazines.get();
+    if (m.count == 0 && !refill(m)) {
+      allocated.incrementAndGet();
+      return null;
+    }
+    P ret = m.pages[--m.count];
+    m.pages[m.count] = null;
+    reused.incrementAndGet();
+    return ret;
+  }
+
+  /**
+   * Replace an empty magazine with a full one from the depot, if there is one
+   */
+  private boolean refill(Magazine m) {
+    P[] full = depot.poll();
+    if (full == null)
+      return false;
+    depotcount.decrementAndGet();
+    depothits.incrementAndGet();
+    m.pages = full;
+    m.count = magsize;
+    return true;
+  }
+
+  /**
+   * Drop a reference to a page, and put it on the free list if it was the last
+   */
+  final void free(P page) {
+    if (page == zero)
+      return;
+    int r = refs.decrementAndGet(page);
+    if (r > 0)
+      return;
+    if (r < 0)
+      throw new RuntimeException("page already free");
+
+    Magazine m = magazines.get();
+    if (m.count == magsize) {
+      // give the full magazine to the depot, or drop it if that is full too
+      if (depotcount.incrementAndGet() <= depotsize) {
+        depot.offer(m.pages);
+      } else {
+        depotcount.decrementAndGet();
+        dropped.addAndGet(magsize);
+        Driver.opt().info("%s depot full, dropping %d pages", name, magsize);
+      }
+      m.pages = array(magsize);
+      m.count = 0;
+    }
+    m.pages[m.count++] = page;
+  }
+
+  /**
+   * Return true if a page has more than one reference. If not shared, it
+   * cannot become shared without us knowing because only the current thread
+   * should have a reference to it.
+   *
+   * This method must be fast as it is called before every uncached write to
+   * memory
+   */
+  final boolean isShared(P page) {
+    return page.refs > 1;
+  }
+
+  /**
+   * Add a reference to the page. After this it may be shared with other
+   * threads.
+   */
+  final void share(P page) {
+    if (page != zero)
+      refs.incrementAndGet(page);
+  }
+
+  /**
+   * Set aux value, e.g. the mmap pages allocated count.
+   */
+  final void setAux(P page, int num) {
+    if (isShared(page))
+      throw new RuntimeException("cannot write to shared page");
+    page.aux = num;
+  }
+
+  /**
+   * Get aux value, e.g. the mmap pages allocated count.
+   */
+  final int getAux(P page) {
+    return page.aux;
+  }
+
+  /**
+   * Get a string describing number of pages allocated
+   */
+  final String string() {
+    return String.format("%s allocated=%d reused=%d copies=%d zero writes=%d depot hits=%d dropped=%d depot=%d",
+        name, allocated.get(), reused.get(), copies.get(), zerowrites.get(), depothits.get(), dropped.get(), depotcount.get() * magsize);
+  }
+
+}
@@ -5,291 +5,237 @@
 
 package cfern.mem;
 
-import cfern.Driver;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import cfern.mem.Pages.Page;
 
 /**
- * A shared paged byte memory. 
+ * A shared paged byte memory, with pages from Pages. Program text pages come
+ * from the PageCache.
  * TODO make an unshared paged byte memory
- * 0-4 mb: unmapped. 
- * 4-256mb: program. 
- * 256mb: data section
- * 384mb: stack (grows down)
- * 384mb: mmap blocks.
- * 512mb: top.
  */
-final class PagedMemory extends Memory {
+final class PagedMemory extends AbstractPagedMemory<Page, byte[]> {
 
 	/**
-	 * Initial stack pointer, 384mb.
+	 * Use the views for word and double word accesses instead of shifting
+	 * bytes. Recent JVMs compile a buffer access to one bounds checked load,
+	 * older ones assemble it from bytes anyway. Halfwords are quicker with
+	 * shifts.
 	 */
-	private static final int stack = 0x18000000;
+	private final boolean useviews;
 
 	/**
-	 * Bytes in a page, 64k. Actual pages are 4 bytes longer, for the shared and
-	 * number allocated flags.
+	 * Big endian views of the page data, created when first needed and
+	 * dropped when the page changes
 	 */
-	private static final int pagesize = 0x10000;
+	private final ByteBuffer[] views = new ByteBuffer[numpages];
 
 	/**
-	 * Number of pages, 8k
+	 * Create a paged byte memory with no regions, using views for words if
+	 * useviews is true.
 	 */
-	private static final int numpages = 8192;
-
-	/**
-	 * 8192 pages of 65536 bytes = 512mb mem
-	 */
-	private final byte[][] pages = new byte[numpages][];
-
-	/**
-	 * Create a paged byte memory with no regions.
-	 */
-	protected PagedMemory() {
-		super();
-		// don't create stack until clear() is called before loading elf
+	protected PagedMemory(boolean useviews) {
+		super(Pages.pool, new byte[numpages][], new byte[tlbsize][]);
+		this.useviews = useviews;
 	}
 
 	/**
 	 * share all pages when copying
 	 */
 	private PagedMemory(PagedMemory other) {
-		super(other);
-		for (int n = 0; n < pages.length; n++) {
-			byte[] mem = other.pages[n];
-			if (mem != null) {
-				Pages.incShared(mem);
-				pages[n] = mem;
-			}
-		}
+		super(other, new byte[numpages][], new byte[tlbsize][]);
+		useviews = other.useviews;
 	}
 
 	public Memory copy() {
 		return new PagedMemory(this);
 	}
 
-	/**
-	 * Create memory regions for the given addresses.
-	 * Used when loading elf files.
-	 * TODO should allocate somewhere new for fixed mappings already mapped (ref. the DIRECT flag to mmap)
-	 */
-	public int alloc(int addr, int size) {
-		if (addr < pagesize)
-			return alloc(size);
+	protected byte[] data(Page page) {
+		return page.data;
+	}
 
-		int startp = addr >> 16;
-		int endp = (addr + size - 1) >> 16;
-		int nump = endp - startp;
+	protected void load(Mapping m, int a, byte[] mem) {
+		m.load(a, mem);
+	}
 
-		if (addr > stack)
-			Driver.opt().elflog("PagedMemory: fixed alloc of mmap pages %d to %d", startp, endp); 
+	protected void store(Mapping m, int a, byte[] mem) {
+		m.store(a, mem);
+	}
 
-		for (int p = startp; p <= endp; p++) {
-			byte[] mem = pages[p];
-			if (mem == null)
-				pages[p] = mem = Pages.alloc();
-			if (addr > stack && p == startp)
-				Pages.setAuxByte(mem, 0, nump);
-		}
-		return addr;
+	protected void fill(byte[] mem, int o, int len, byte b) {
+		Arrays.fill(mem, o, o + len, b);
 	}
 
-	/**
-	 * Allocate upper memory for mmap
-	 */
-	private int alloc(int size) {
-		int sizep = (size / pagesize) + ((size % pagesize) > 0 ? 1 : 0);
-		//System.err.printf("# alloc %d bytes (%d pages)\n", size, sizep);
-		if (sizep > 100)
-			throw new RuntimeException("cannot alloc " + sizep + " pages");
-		// starting page of alloc
-		int startp = -1;
-		for (int p = stack >>> 16; p < pages.length; p++) {
-			byte[] mem = pages[p];
-			if (mem != null) {
-				startp = -1;
-				continue;
-			}
-			if (startp == -1)
-				startp = p;
-			if ((p - startp + 1) == sizep) {
-				for (int n = 0; n < sizep; n++)
-					//newpage(startp + n);
-					pages[startp + n] = Pages.alloc();
-				Pages.setAuxByte(pages[startp], 0, sizep);
-				//System.err.printf("# allocated %d pages at %s\n", sizep, getname(startp << 16));
-				return startp << 16;
-			}
-		}
-		throw new RuntimeException("could not find " + sizep + " free pages");
+	protected ByteBuffer wrap(byte[] mem, int o, int len) {
+		return ByteBuffer.wrap(mem, o, len);
 	}
 
 	/**
-	 * Drop all pages (used during execve and at exit)
+	 * Share text pages through the page cache
 	 */
-	public void clear() {
-		for (int n = 0; n < pages.length; n++) {
-			byte[] page = pages[n];
-			if (page != null) {
-				Pages.free(page);
-				pages[n] = null;
-			}
-		}
+	protected Page text(Mapping m, int a) {
+		return PageCache.get(m, a);
 	}
 
 	/**
-	 * Inital stack pointer, 384mb
+	 * Drop the view of a changed page
 	 */
-	public int stack() {
-		return stack;
+	protected void changed(int p) {
+		views[p] = null;
 	}
 
 	/**
-	 * Drop all pages and reallocate stack (used during execve)
-	 */
-	/*
-  public void clear(int stacksize) {
-    clear();
-    int pages = (stacksize / pagesize) + (stacksize % pagesize != 0 ? 1 : 0);
-    allocstack(stack, pages * pagesize);
-  }
+	 * Get the view of page p, which is mem
 	 */
+	private ByteBuffer view(int p, byte[] mem) {
+		ByteBuffer buf = views[p];
+		if (buf == null)
+			views[p] = buf = ByteBuffer.wrap(mem);
+		return buf;
+	}
 
 	/**
-	 * unshare a page
+	 * Get the view for reading at address a
 	 */
-	private byte[] copypage(int p) {
-		// FIXME does not copy pages allocated
-		byte[] mem = Pages.alloc(pages[p]);
-		//byte[] mem = pages[p].clone();
-		//mem[share_flag] = 0;
-		pages[p] = mem;
-		return mem;
+	private ByteBuffer readview(int a) {
+		return view(a >>> 16, readpage(a));
 	}
 
 	/**
-	 * Free a mmap memory block
+	 * Get the view for writing at address a, and put the page in the TLB
 	 */
-	public void free(int a) {
-		int p = a >>> 16;
-				int sizep = Pages.getAuxByte(pages[p], 0);
-				if (sizep == 0)
-					throw new RuntimeException("page " + p + " freed but was not allocated");
-				for (int n = p; n < sizep; n++) {
-					Pages.free(pages[p + n]);
-					pages[p + n] = null;
-				}
-	}
-
-	public boolean bound(int a) {
-		int p = a >> 16;
-				// is negative for addresses over 2gb
-				if (p < 0 || p >= pages.length)
-					return false;
-				else
-					return pages[p] != null;
+	private ByteBuffer writeview(int a) {
+		return view(a >>> 16, writepage(a));
 	}
 
 	public final int load_word(int a) {
 		try {
-			byte[] mem = pages[a >> 16];
-			a &= 0xffff;
+			if (useviews) {
+				ByteBuffer buf = views[a >>> 16];
+				return (buf != null ? buf : readview(a)).getInt(a & 0xffff);
+			}
+			byte[] mem = data[a >>> 16];
+			if (mem == null)
+				mem = readpage(a);
+			int o = a & 0xffff;
 			// TODO make this a field
 			int bm = 0xff;
-			return ((mem[a] & bm) << 24) | ((mem[a + 1] & bm) << 16) | ((mem[a + 2] & bm) << 8) | (mem[a + 3] & bm);
+			return ((mem[o] & bm) << 24) | ((mem[o + 1] & bm) << 16) | ((mem[o + 2] & bm) << 8) | (mem[o + 3] & bm);
 		} catch (RuntimeException e) {
-			// TODO should be in every method
-			throw new SegFault(a, e);
+			throw segfault(a, e);
 		}
 	}
 
 	public final void store_word(int a, int x) {
-		byte[] mem = pages[a >> 16];
-		// TODO the default case should fall through, check the bytecode
-		if (Pages.isShared(mem))
-			mem = copypage(a >> 16);
-		a &= 0xffff;
-		mem[a] = (byte) (x >> 24);
-		mem[a+1] = (byte) (x >> 16);
-		mem[a+2] = (byte) (x >> 8);
-		mem[a+3] = (byte) x;
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			if (useviews) {
+				// the view of a page in the TLB is the private page's, if any
+				ByteBuffer buf = wtags[i] == p ? views[p] : null;
+				(buf != null ? buf : writeview(a)).putInt(a & 0xffff, x);
+				return;
+			}
+			byte[] mem = wtags[i] == p ? wpages[i] : writepage(a);
+			int o = a & 0xffff;
+			mem[o] = (byte) (x >> 24);
+			mem[o + 1] = (byte) (x >> 16);
+			mem[o + 2] = (byte) (x >> 8);
+			mem[o + 3] = (byte) x;
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
 	}
 
 	public final short load_half(int a) {
-		byte[] mem = pages[a >> 16];
-		a &= 0xffff;
-		int bm = 0xff;
-		return (short) (((mem[a] & bm) << 8) | (mem[a + 1] & bm));  
+		try {
+			byte[] mem = data[a >>> 16];
+			if (mem == null)
+				mem = readpage(a);
+			int o = a & 0xffff;
+			int bm = 0xff;
+			return (short) (((mem[o] & bm) << 8) | (mem[o + 1] & bm));
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
 	}
 
 	public final void store_half(int a, short x) {
-		byte[] mem = pages[a >> 16];
-		if (Pages.isShared(mem))
-			mem = copypage(a >> 16);
-		a &= 0xffff;
-		mem[a] = (byte) (x >> 8);
-		mem[a + 1] = (byte) x;
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			byte[] mem = wtags[i] == p ? wpages[i] : writepage(a);
+			int o = a & 0xffff;
+			mem[o] = (byte) (x >> 8);
+			mem[o + 1] = (byte) x;
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
+	}
+
+	/**
+	 * Load a double word, in one access if it is in one page
+	 */
+	public final long load_dword(int a) {
+		if (!useviews || (a & 0xffff) > pagesize - 8)
+			return super.load_dword(a);
+		try {
+			ByteBuffer buf = views[a >>> 16];
+			return (buf != null ? buf : readview(a)).getLong(a & 0xffff);
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
 	}
 
 	public final byte load_byte(int a) {
-		return pages[a >> 16][a & 0xffff];
+		try {
+			byte[] mem = data[a >>> 16];
+			return (mem != null ? mem : readpage(a))[a & 0xffff];
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
 	}
 
 	public final void store_byte(int a, byte x) {
-		byte[] mem = pages[a >> 16];
-		if (Pages.isShared(mem))
-			mem = copypage(a >> 16);
-		mem[a & 0xffff] = x;
+		try {
+			int p = a >>> 16, i = tlbindex(p);
+			(wtags[i] == p ? wpages[i] : writepage(a))[a & 0xffff] = x;
+		} catch (RuntimeException e) {
+			throw segfault(a, e);
+		}
 	}
 
 	/**
-	 * Store a series of bytes at virtual address a
+	 * Store a series of bytes at virtual address a, a page at a time
 	 */
 	public void store_bytes(int addr, byte[] buf, int off, int len) {
-		//System.err.printf("store_bytes(%x,buf[%d],%d,%d)\n", addr, buf.length, off, len);
-
-		// first page
-		int startp = addr >> 16;
-		// number of pages - 1
-		int nump = ((addr + len) >> 16) - startp;
-		// end address in last page + 1
-		int enda = ((addr + len) & 0xffff);
-		if (enda == 0)
-			// nothing to copy in last page
-			nump--;
-		// source index
-		int si = off;
+		int end = off + len;
+		while (off < end) {
+			// offset in page and bytes to copy to this page
+			int o = addr & 0xffff, n = Math.min(end - off, pagesize - o);
+			System.arraycopy(buf, off, writepage(addr), o, n);
+			off += n;
+			addr += n;
+		}
+	}
 
-		for (int p = 0; p <= nump; p++, si += pagesize) {
-			// TODO better to break here if p==nump and enda==0?
-			int di = p == 0 ? (addr & 0xffff) : 0;
-			// enda of 0 means copy whole page
-			// (as it's really the second to last page, as per above)
-			int ei = p == nump && enda > 0 ? enda : pagesize;
-			byte[] mem = pages[startp + p];
-			if (Pages.isShared(mem))
-				mem = copypage(startp + p);
-			//System.err.printf("arraycopy(buf[%d], %d, mem[%d], %d, %d ) p %d nump %d ei %d enda %d\n", 
-			//buf.length, si, mem.length, di, ei - di, p, nump, ei, enda);
-			System.arraycopy(buf, si, mem, di, ei - di);
+	/**
+	 * Load a series of bytes from virtual address a, a page at a time
+	 */
+	public void load_bytes(int addr, byte[] buf, int off, int len) {
+		int end = off + len;
+		while (off < end) {
+			int o = addr & 0xffff, n = Math.min(end - off, pagesize - o);
+			System.arraycopy(readpage(addr), o, buf, off, n);
+			off += n;
+			addr += n;
 		}
 	}
 
 	/**
-	 * Return a list of mapped pages
+	 * Return a list of mapped pages and the page cache
 	 */
 	public String toString() {
-		StringBuilder sb = new StringBuilder(super.toString()).append("\n");
-		int nump = 0;
-		for (int p = 0; p < pages.length; p++) {
-			byte[] mem = pages[p];
-			if (mem != null) {
-				boolean sh = Pages.isShared(mem);
-				int al = Pages.getAuxByte(mem, 0);
-				sb.append(String.format("%4x: share: %s alloc: %d\n", p, sh, al));
-				nump++;
-			}
-		}
-		sb.append(String.format("Total: %d pages\n", nump));
-		return sb.toString();
+		return super.toString() + PageCache.string() + "\n";
 	}
 
 } // end of class PagedMemory
@@ -61,4 +61,6 @@ public interface Errors {
   public static final String edestaddrreq = "EDESTADDRREQ";
   /** System call not supported */
   public static final String enosys = "ENOSYS";
+  /** Too many symbolic links in a path */
+  public static final String eloop = "ELOOP";
 }
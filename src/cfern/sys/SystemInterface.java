@@ -249,13 +249,24 @@ public final class SystemInterface extends Interface {
   }
   
   /**
-   * unmap the given region
-   * FIXME may need to write back to file
+   * unmap the given region, writing it back if it is a shared file mapping
    */
   public int munmap(int start_p, int len) {
     opt.info("munmap (%s, len %d)", mem.getname(start_p), len);
     mem.free(start_p);
-    opt.info("munmap: stub not writing back");
+    return 0;
+  }
+  
+  /**
+   * Write a shared file mapping back to the file. Flags are ignored, it is
+   * always synchronous.
+   * int msync(void *start, size_t length, int flags);
+   */
+  public int msync(int start_p, int len, int flags) {
+    opt.info("msync (%s, len %d, %s)", mem.getname(start_p), len, con.names("MS_", flags));
+    if (!mem.bound(start_p))
+      return con.error(enomem);
+    mem.sync(start_p, len);
     return 0;
   }
   
@@ -139,7 +139,7 @@ public class UnistdInterface extends Interface {
         return con.error(enoent);
       }
         
-      ElfLoader elf = ElfLoader.loadelf(uf);
+      ElfLoader elf = ElfLoader.loadelf(uf, apath);
       
       // commit to loading program
       // close files
@@ -164,9 +164,12 @@ public class UnistdInterface extends Interface {
     if (file == null || !file.writeable())
       return con.error(ebadf);
     
+    if (len > 0 && !mem.bound(buf_p))
+      return con.error(efault);
+    
     int ret = mem.write_to(file, buf_p, len);
-    if (ret < len)
-      throw new RuntimeException("could not write " + len + " bytes");
+    if (ret == 0 && len > 0)
+      return con.error(eagain);
     
     return ret;
   }
@@ -334,6 +337,8 @@ public class UnistdInterface extends Interface {
     
     if (file.isNonBlock() && file.inChannel() == null && file.available() == 0)
       throw new RuntimeException("read: blocking read from non block file " + file);
+    if (len > 0 && !mem.bound(buf_p))
+      return con.error(efault);
     
     int ret = mem.read_from(file, buf_p, len); // will be 0 on EOF, -1 on err
     